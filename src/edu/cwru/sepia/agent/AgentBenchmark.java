@@ -0,0 +1,327 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Microbenchmarks for the RLAgent methods that run every turn.
+ *
+ * Each benchmark runs against a fixture: a SEPIA State and History built directly, without an
+ * environment, from one of the shipped maps or from a BattleMapGenerator battle. The agent takes its
+ * initial step on turn 0, every footman having picked a target, and the state is then advanced to the
+ * requested turn with one turn of fighting logged before it: every footman hit its target and every
+ * enemy hit one of our footmen, mostly ones that are not attacking it, so the reward calculation has
+ * events to learn from. The agent is put in a learning episode so weight updates happen.
+ *
+ * Usage: AgentBenchmark [key=value ...]
+ *
+ * <pre>
+ * scenarios=5fv5f,10fv10f,50v50,200v200   maps (rl_5fv5f, rl_10fv10f) or generated NvN battles
+ * turns=10,500,5000,10000                  turn numbers to measure at
+ * bench=                                   only run benchmarks whose name contains this
+ * warmup=3 iterations=5 time=500           iterations per benchmark and milliseconds per iteration
+ * </pre>
+ *
+ * Any other key=value argument is passed on to the agent, e.g. features= to benchmark other features.
+ *
+ * Every iteration gets a fresh fixture, so state the agent accumulates (rewards, weights) does not
+ * carry over between iterations. The reported time is the mean over the measured iterations with its
+ * standard deviation, and the allocation is the bytes allocated by the benchmark thread per operation,
+ * or n/a if the JVM cannot measure it.
+ */
+public class AgentBenchmark {
+
+    private static final int BATCH = 16;
+
+    /** Results are folded in here so the JIT cannot drop the benchmarked calls. */
+    static volatile double sink;
+
+    private static final List<String> BENCHMARK_KEYS = Arrays.asList(
+            "scenarios", "turns", "bench", "warmup", "iterations", "time");
+
+    public static void main(String[] args) throws Exception {
+        AgentOptions options = new AgentOptions(args, 0);
+        String[] scenarios = options.getString("scenarios", "5fv5f,10fv10f,50v50,200v200").split(",");
+        String[] turns = options.getString("turns", "10,500,5000,10000").split(",");
+        String filter = options.getString("bench", "");
+        int warmup = options.getInt("warmup", 3);
+        int iterations = options.getInt("iterations", 5);
+        long nanosPerIteration = options.getLong("time", 500) * 1000000L;
+        List<String> agentArgs = new ArrayList<String>(Arrays.asList("1", "false"));
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split > 0 && !BENCHMARK_KEYS.contains(arg.substring(0, split).trim())) {
+                agentArgs.add(arg);
+            }
+        }
+        String[] agentOptions = agentArgs.toArray(new String[agentArgs.size()]);
+
+        System.out.println(String.format("%-32s %-9s %6s %12s %10s %12s",
+                "Benchmark", "Scenario", "Turn", "ns/op", "+-", "B/op"));
+        for (String scenario : scenarios) {
+            XmlState map = loadScenario(scenario.trim());
+            for (String turn : turns) {
+                for (Benchmark benchmark : BENCHMARKS) {
+                    if (!benchmark.name.contains(filter)) {
+                        continue;
+                    }
+                    int turnNumber = Integer.parseInt(turn.trim());
+                    for (int i = 0; i < warmup; i++) {
+                        measure(benchmark, new Fixture(map, turnNumber, agentOptions), nanosPerIteration);
+                    }
+                    double[] nanos = new double[iterations];
+                    double bytes = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        double[] result = measure(benchmark, new Fixture(map, turnNumber, agentOptions), nanosPerIteration);
+                        nanos[i] = result[0];
+                        bytes += result[1] / iterations;
+                    }
+                    System.out.println(String.format("%-32s %-9s %6d %12.1f %10.1f %12s",
+                            benchmark.name, scenario.trim(), turnNumber, mean(nanos), stddev(nanos),
+                            bytes < 0 ? "n/a" : String.format("%.1f", bytes)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads rl_5fv5f or rl_10fv10f from data/, or generates an NvN battle from rl_5fv5f.
+     */
+    static XmlState loadScenario(String scenario) throws Exception {
+        if (scenario.matches("\\d+v\\d+")) {
+            int footmen = Integer.parseInt(scenario.substring(0, scenario.indexOf('v')));
+            return BattleMapGenerator.generate(ParallelTrainer.loadMap(new File("data/rl_5fv5f.xml")), footmen);
+        }
+        return ParallelTrainer.loadMap(new File("data/rl_" + scenario + ".xml"));
+    }
+
+    /**
+     * Runs the benchmark on the fixture for about the given time.
+     *
+     * @return Nanoseconds per operation and bytes allocated per operation (negative if unknown)
+     */
+    private static double[] measure(Benchmark benchmark, Fixture fixture, long nanos) {
+        double accumulated = 0;
+        int op = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + nanos;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                accumulated += benchmark.run(fixture, op++);
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocatedAfter = allocatedBytes();
+        sink += accumulated;
+        double bytes = allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / op;
+        return new double[]{(double) (now - start) / op, bytes};
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double stddev(double[] values) {
+        double mean = mean(values);
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return values.length > 1 ? Math.sqrt(sum / (values.length - 1)) : 0;
+    }
+
+    /**
+     * One benchmarked operation. op counts up from 0 within an iteration and is used to cycle over
+     * the footmen or (footman, enemy) pairs of the fixture.
+     */
+    abstract static class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        abstract double run(Fixture fixture, int op);
+    }
+
+    static final Benchmark[] BENCHMARKS = {
+            new Benchmark("calculateFeatureVector") {
+                @Override
+                double run(Fixture f, int op) {
+                    int pair = op % (f.footmen.length * f.enemies.length);
+                    f.agent.calculateFeatureVector(f.stateView, f.historyView,
+                            f.footmen[pair / f.enemies.length], f.enemies[pair % f.enemies.length], f.features, 0);
+                    return f.features[f.features.length - 1];
+                }
+            },
+            new Benchmark("calcQValue") {
+                @Override
+                double run(Fixture f, int op) {
+                    int pair = op % (f.footmen.length * f.enemies.length);
+                    return f.agent.calcQValue(f.stateView, f.historyView,
+                            f.footmen[pair / f.enemies.length], f.enemies[pair % f.enemies.length]);
+                }
+            },
+            new Benchmark("selectAction") {
+                @Override
+                double run(Fixture f, int op) {
+                    return f.agent.selectAction(f.stateView, f.historyView, f.footmen[op % f.footmen.length]);
+                }
+            },
+            new Benchmark("selectMaxAction") {
+                @Override
+                double run(Fixture f, int op) {
+                    return f.agent.selectMaxAction(f.stateView, f.historyView, f.footmen[op % f.footmen.length]);
+                }
+            },
+            // one op is a whole turn of decisions, starting from nothing cached
+            new Benchmark("selectAction/turn") {
+                @Override
+                double run(Fixture f, int op) {
+                    f.agent.invalidateTurnCaches();
+                    int sum = 0;
+                    for (int footman : f.footmen) {
+                        sum += f.agent.selectAction(f.stateView, f.historyView, footman);
+                    }
+                    return sum;
+                }
+            },
+            // the same turn of decisions made jointly, see RLAgent.selectActions
+            new Benchmark("selectActions/turn") {
+                @Override
+                double run(Fixture f, int op) {
+                    f.agent.invalidateTurnCaches();
+                    f.agent.selectActions(f.stateView, f.historyView, f.footmenIds);
+                    int sum = 0;
+                    for (int footman : f.footmen) {
+                        sum += f.agent.targets.targetOf(footman);
+                    }
+                    return sum;
+                }
+            },
+            new Benchmark("calcRewardsAndGetInactiveUnits") {
+                @Override
+                double run(Fixture f, int op) {
+                    f.actions.clear();
+                    return f.agent.calcRewardsAndGetInactiveUnits(f.stateView, f.historyView, f.actions).size();
+                }
+            },
+            // one op is a whole middleStep on a turn after which nothing happened, see RLAgent.isQuietTurn
+            new Benchmark("middleStep/quiet") {
+                @Override
+                double run(Fixture f, int op) {
+                    if (op == 0) {
+                        // move past the turn of fighting the fixture logged
+                        f.state.incrementTurn();
+                    }
+                    return f.agent.middleStep(f.stateView, f.historyView).size();
+                }
+            },
+            new Benchmark("updateWeights") {
+                @Override
+                double run(Fixture f, int op) {
+                    f.agent.updateWeights(f.stateView, f.historyView, f.footmen[op % f.footmen.length]);
+                    return 0;
+                }
+            },
+    };
+
+    /**
+     * An agent part way through a battle, see the class comment.
+     */
+    static class Fixture {
+        final RLAgent agent;
+        final State state;
+        final State.StateView stateView;
+        final History.HistoryView historyView;
+        final int[] footmen;
+        final List<Integer> footmenIds = new ArrayList<Integer>();
+        final int[] enemies;
+        final double[] features;
+        final Map<Integer, Action> actions = new HashMap<Integer, Action>();
+
+        Fixture(XmlState map, int turn, String[] agentArgs) throws Exception {
+            if (turn < 1) {
+                throw new IllegalArgumentException("Turn must be at least 1, was " + turn);
+            }
+            state = new XmlStateCreator(map).createState();
+            History history = new History();
+            history.addPlayer(0);
+            history.addPlayer(RLAgent.ENEMY_PLAYERNUM);
+            stateView = state.getView(0);
+            historyView = history.getView(0);
+            footmen = sortedIds(stateView.getUnitIds(0));
+            enemies = sortedIds(stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM));
+            for (int footman : footmen) {
+                footmenIds.add(footman);
+            }
+
+            // the agent reports its settings on stdout, which would break up the results table
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            try {
+                agent = new RLAgent(0, agentArgs);
+                agent.initialStep(stateView, historyView);
+            } finally {
+                System.setOut(out);
+            }
+            agent.explorationEpisode = true;
+            features = new double[agent.getNumFeatures()];
+
+            while (state.getTurnNumber() < turn - 1) {
+                state.incrementTurn();
+            }
+            for (int i = 0; i < footmen.length; i++) {
+                int target = agent.targets.targetOf(footmen[i]);
+                history.recordDamage(state.getUnit(footmen[i]), state.getUnit(target), 5, state);
+                history.recordCommandFeedback(0, state.getTurnNumber(),
+                        new ActionResult(Action.createCompoundAttack(footmen[i], target), ActionFeedback.INCOMPLETE));
+            }
+            for (int i = 0; i < enemies.length; i++) {
+                history.recordDamage(state.getUnit(enemies[i]), state.getUnit(footmen[i % footmen.length]), 5, state);
+            }
+            state.incrementTurn();
+        }
+
+        private static int[] sortedIds(List<Integer> ids) {
+            int[] sorted = new int[ids.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = ids.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
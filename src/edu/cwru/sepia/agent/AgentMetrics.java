@@ -0,0 +1,313 @@
+package edu.cwru.sepia.agent;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters and latency histograms of one agent.
+ *
+ * Phases are timed with start()/stop() pairs, which may nest: a phase's time excludes the phases
+ * timed inside it, so reward accounting does not also count the weight updates it triggers, and
+ * the phase times add up to the time spent in the agent. The exception is TURN, which is the whole
+ * of middleStep. Latencies go into power-of-two histograms, so percentiles are accurate to within
+ * a factor of two at a fixed cost of one array increment per sample.
+ *
+ * Timing is only on when metrics are exported; otherwise start() and stop() do nothing. The
+ * counters are always kept. Exports, all optional:
+ *
+ * <pre>
+ * metrics=dir    dir/episodes.csv gets a row per episode, dir/summary.json the running totals
+ * jmx=true       registers an AgentMetricsMXBean with the platform MBean server
+ * </pre>
+ *
+ * Files are written through AsyncLog, never on the agent's thread. Everything is updated by the
+ * agent's thread only; JMX readers see the values without locking, possibly a turn behind.
+ */
+class AgentMetrics implements AgentMetricsMXBean {
+
+    enum Phase {
+        /** The whole of middleStep. */
+        TURN,
+        /** calcRewardsAndGetInactiveUnits, minus the updates it triggers. */
+        REWARDS,
+        /** Filling the per-turn Q-table with feature vectors. */
+        FEATURES,
+        /** Scoring and choosing targets. */
+        SELECTION,
+        /** Weight updates, online and replayed. */
+        UPDATES
+    }
+
+    private static final String CSV_HEADER = "episode,exploration,turns,events,weightUpdates,won,stalemate,footmenLeft,enemiesLeft,millis\n";
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final boolean timing;
+    private final File directory;
+
+    private final long[][] buckets = new long[Phase.values().length][65];
+    private final long[] counts = new long[Phase.values().length];
+    private final long[] totalNanos = new long[Phase.values().length];
+    private final long[] maxNanos = new long[Phase.values().length];
+
+    /** Time spent in nested phases, per nesting depth. */
+    private final long[] childNanos = new long[8];
+    private int depth;
+
+    private long episodes;
+    private long turns;
+    private long quietTurns;
+    private long events;
+    private long weightUpdates;
+    private long wins;
+    private long stalemates;
+    private long deadUnitFeatures;
+
+    private int episode;
+    private boolean exploration;
+    private long episodeStart;
+    private long episodeTurns;
+    private long episodeEvents;
+    private long episodeUpdates;
+
+    public AgentMetrics(AgentOptions options) {
+        String dir = options.getString("metrics", null);
+        directory = dir == null ? null : new File(dir);
+        boolean jmx = options.getBoolean("jmx", false);
+        timing = directory != null || jmx;
+        if (directory != null) {
+            AsyncLog.shared().overwrite(new File(directory, "episodes.csv"), CSV_HEADER);
+        }
+        if (jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(
+                        "edu.cwru.sepia.agent:type=AgentMetrics,name=agent" + instances.incrementAndGet()));
+            } catch (Exception ex) {
+                System.err.println("Failed to register agent metrics with JMX. Reason: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return A start time for stop(), or 0 if timing is off
+     */
+    public long start() {
+        if (!timing) {
+            return 0;
+        }
+        depth++;
+        childNanos[depth] = 0;
+        return System.nanoTime();
+    }
+
+    public void stop(Phase phase, long start) {
+        if (!timing) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        long own = elapsed - childNanos[depth];
+        depth--;
+        childNanos[depth] += elapsed;
+        record(phase, phase == Phase.TURN ? elapsed : own);
+    }
+
+    private void record(Phase phase, long nanos) {
+        int p = phase.ordinal();
+        // bucket b holds [2^(b-1), 2^b)
+        buckets[p][64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))]++;
+        counts[p]++;
+        totalNanos[p] += nanos;
+        maxNanos[p] = Math.max(maxNanos[p], nanos);
+    }
+
+    public void startEpisode(int episode, boolean exploration) {
+        this.episode = episode;
+        this.exploration = exploration;
+        episodeStart = System.nanoTime();
+        episodeTurns = 0;
+        episodeEvents = 0;
+        episodeUpdates = 0;
+    }
+
+    public void turn() {
+        turns++;
+        episodeTurns++;
+    }
+
+    /**
+     * A turn with nothing to react to, answered without the full reward pass.
+     */
+    public void quietTurn() {
+        quietTurns++;
+    }
+
+    public void events(int count) {
+        events += count;
+        episodeEvents += count;
+    }
+
+    public void weightUpdate() {
+        weightUpdates++;
+        episodeUpdates++;
+    }
+
+    /**
+     * Feature vector asked for with a unit that is already dead.
+     */
+    public void deadUnitFeature() {
+        deadUnitFeatures++;
+    }
+
+    public void deadUnitFeatures(long count) {
+        deadUnitFeatures += count;
+    }
+
+    /**
+     * @param stalemate True if the episode was ended early as a stalemate, see StalemateDetector
+     */
+    public void endEpisode(boolean won, boolean stalemate, int footmenLeft, int enemiesLeft) {
+        episodes++;
+        if (won) {
+            wins++;
+        }
+        if (stalemate) {
+            stalemates++;
+        }
+        if (directory == null) {
+            return;
+        }
+        long millis = (System.nanoTime() - episodeStart) / 1000000;
+        AsyncLog.shared().append(new File(directory, "episodes.csv"), episode + "," + exploration + "," + episodeTurns + ","
+                + episodeEvents + "," + episodeUpdates + "," + won + "," + stalemate + "," + footmenLeft + "," + enemiesLeft + "," + millis + "\n");
+        AsyncLog.shared().overwrite(new File(directory, "summary.json"), toJson());
+    }
+
+    /**
+     * Upper bound of the bucket holding the given fraction of the phase's samples.
+     */
+    public long percentileNanos(Phase phase, double fraction) {
+        int p = phase.ordinal();
+        long target = (long) Math.ceil(fraction * counts[p]);
+        long seen = 0;
+        for (int b = 0; b < buckets[p].length; b++) {
+            seen += buckets[p][b];
+            if (seen >= target && seen > 0) {
+                return b == 0 ? 0 : Math.min(maxNanos[p], (1L << b) - 1);
+            }
+        }
+        return 0;
+    }
+
+    public double meanNanos(Phase phase) {
+        int p = phase.ordinal();
+        return counts[p] == 0 ? 0 : (double) totalNanos[p] / counts[p];
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"episodes\": ").append(episodes).append(",\n");
+        json.append("  \"turns\": ").append(turns).append(",\n");
+        json.append("  \"quietTurns\": ").append(quietTurns).append(",\n");
+        json.append("  \"events\": ").append(events).append(",\n");
+        json.append("  \"weightUpdates\": ").append(weightUpdates).append(",\n");
+        json.append("  \"wins\": ").append(wins).append(",\n");
+        json.append("  \"stalemates\": ").append(stalemates).append(",\n");
+        json.append("  \"deadUnitFeatures\": ").append(deadUnitFeatures).append(",\n");
+        json.append("  \"phases\": {\n");
+        for (Phase phase : Phase.values()) {
+            json.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"meanNanos\": %.1f, \"p50Nanos\": %d, \"p99Nanos\": %d, \"maxNanos\": %d}%s\n",
+                    name(phase), counts[phase.ordinal()], meanNanos(phase), percentileNanos(phase, 0.5),
+                    percentileNanos(phase, 0.99), maxNanos[phase.ordinal()],
+                    phase.ordinal() == Phase.values().length - 1 ? "" : ","));
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String name(Phase phase) {
+        return phase.name().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public long getEpisodes() {
+        return episodes;
+    }
+
+    @Override
+    public long getTurns() {
+        return turns;
+    }
+
+    @Override
+    public long getQuietTurns() {
+        return quietTurns;
+    }
+
+    @Override
+    public long getEvents() {
+        return events;
+    }
+
+    @Override
+    public long getWeightUpdates() {
+        return weightUpdates;
+    }
+
+    @Override
+    public long getWins() {
+        return wins;
+    }
+
+    @Override
+    public long getStalemates() {
+        return stalemates;
+    }
+
+    @Override
+    public long getDeadUnitFeatures() {
+        return deadUnitFeatures;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            values.put(name(phase), counts[phase.ordinal()]);
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMeanNanos() {
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for (Phase phase : Phase.values()) {
+            values.put(name(phase), meanNanos(phase));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseP99Nanos() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            values.put(name(phase), percentileNanos(phase, 0.99));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMaxNanos() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            values.put(name(phase), maxNanos[phase.ordinal()]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,34 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Map;
+
+/**
+ * JMX view of an agent's AgentMetrics, registered as edu.cwru.sepia.agent:type=AgentMetrics,name=...
+ * when the agent is started with jmx=true. Phase maps are keyed by phase name.
+ */
+public interface AgentMetricsMXBean {
+
+    long getEpisodes();
+
+    long getTurns();
+
+    long getQuietTurns();
+
+    long getEvents();
+
+    long getWeightUpdates();
+
+    long getWins();
+
+    long getStalemates();
+
+    long getDeadUnitFeatures();
+
+    Map<String, Long> getPhaseCounts();
+
+    Map<String, Double> getPhaseMeanNanos();
+
+    Map<String, Long> getPhaseP99Nanos();
+
+    Map<String, Long> getPhaseMaxNanos();
+}
@@ -0,0 +1,65 @@
+package edu.cwru.sepia.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional agent settings given as key=value arguments after the positional ones, e.g.
+ *
+ * <pre>
+ * &lt;Argument&gt;30&lt;/Argument&gt;
+ * &lt;Argument&gt;false&lt;/Argument&gt;
+ * &lt;Argument&gt;replay=4096&lt;/Argument&gt;
+ * </pre>
+ *
+ * Anything missing falls back to the default given by the caller, so old configurations keep
+ * working unchanged.
+ */
+class AgentOptions {
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * @param args The agent's arguments
+     * @param firstOption Index of the first key=value argument
+     */
+    public AgentOptions(String[] args, int firstOption) {
+        for (int i = firstOption; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if (split <= 0) {
+                System.err.println("Ignoring agent argument \"" + args[i] + "\", expected key=value.");
+                continue;
+            }
+            values.put(args[i].substring(0, split).trim(), args[i].substring(split + 1).trim());
+        }
+    }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
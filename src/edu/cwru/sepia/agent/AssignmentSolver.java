@@ -0,0 +1,268 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Assigns footmen (rows) to enemies (columns) so the sum of their Q-values is as high as possible,
+ * with at most a given number of footmen per enemy.
+ *
+ * Every enemy is split into one slot per footman it can still take and the rows are matched to slots
+ * with the Hungarian algorithm, adding one row at a time along a shortest augmenting path, in
+ * O(rows^2 * slots). No more than rows - 1 other footmen can stand in a footman's way, so its best enemy
+ * is always among the rows enemies it values most, and no enemy ever needs more than rows slots. When
+ * only a few footmen need a target, which is most turns, only the union of those candidates gets slots.
+ *
+ * Set the problem up with setSize, setValue and setCapacity, then call solve. The buffers are reused
+ * from solve to solve, so solving does not allocate unless the problem grows.
+ */
+class AssignmentSolver {
+
+    public static final int NONE = -1;
+
+    private int rows;
+    private int columns;
+    private double[] values = new double[0];
+    private int[] capacity = new int[0];
+
+    private int[] candidates = new int[0];
+    private int numCandidates;
+    private boolean[] isCandidate = new boolean[0];
+    private int[] best = new int[0];
+
+    /** Indexed by slot + 1; index 0 is the Hungarian algorithm's virtual slot. */
+    private int[] slotColumn = new int[1];
+    private int[] rowOfSlot = new int[1];
+    private int[] way = new int[1];
+    private double[] slotPotential = new double[1];
+    private double[] minSlack = new double[1];
+    private boolean[] visited = new boolean[1];
+    /** Indexed by row + 1. */
+    private double[] rowPotential = new double[1];
+    private boolean[] rowMatched = new boolean[1];
+
+    private int[] columnOf = new int[0];
+
+    /**
+     * Starts a new problem. Every capacity is reset to 0.
+     */
+    public void setSize(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        if (values.length < rows * columns) {
+            values = new double[rows * columns];
+        }
+        if (capacity.length < columns) {
+            capacity = new int[columns];
+            candidates = new int[columns];
+            isCandidate = new boolean[columns];
+        }
+        Arrays.fill(capacity, 0, columns, 0);
+        if (columnOf.length < rows) {
+            columnOf = new int[rows];
+            best = new int[rows];
+            rowPotential = new double[rows + 1];
+            rowMatched = new boolean[rows + 1];
+        }
+    }
+
+    public void setValue(int row, int column, double value) {
+        values[row * columns + column] = value;
+    }
+
+    /**
+     * @param slots Number of footmen that may still be assigned to the column's enemy
+     */
+    public void setCapacity(int column, int slots) {
+        capacity[column] = Math.max(0, slots);
+    }
+
+    /**
+     * Solves the problem. If there are fewer slots than rows, every column gets the same number of
+     * extra slots until there are enough, so every row is always assigned while there are columns.
+     * Non-finite values (diverged weights) are treated as worse than every finite one.
+     *
+     * @return The column of every row, NONE if there are no columns. Only valid until the next solve.
+     */
+    public int[] solve() {
+        if (columns == 0) {
+            Arrays.fill(columnOf, 0, rows, NONE);
+            return columnOf;
+        }
+        if (rows == 0) {
+            return columnOf;
+        }
+        int extra = 0;
+        int total = 0;
+        for (int c = 0; c < columns; c++) {
+            total += capacity[c];
+        }
+        if (total < rows) {
+            extra = (rows - total + columns - 1) / columns;
+        }
+        for (int c = 0; c < columns; c++) {
+            capacity[c] = Math.min(capacity[c] + extra, rows);
+        }
+        replaceNonFinite();
+        chooseCandidates();
+
+        int slots = 0;
+        for (int k = 0; k < numCandidates; k++) {
+            slots += capacity[candidates[k]];
+        }
+        if (slotColumn.length < slots + 1) {
+            slotColumn = new int[slots + 1];
+            rowOfSlot = new int[slots + 1];
+            way = new int[slots + 1];
+            slotPotential = new double[slots + 1];
+            minSlack = new double[slots + 1];
+            visited = new boolean[slots + 1];
+        }
+        int slot = 1;
+        for (int k = 0; k < numCandidates; k++) {
+            for (int i = 0; i < capacity[candidates[k]]; i++) {
+                slotColumn[slot++] = candidates[k];
+            }
+        }
+        hungarian(slots);
+
+        for (int s = 1; s <= slots; s++) {
+            if (rowOfSlot[s] != 0) {
+                columnOf[rowOfSlot[s] - 1] = slotColumn[s];
+            }
+        }
+        return columnOf;
+    }
+
+    private void replaceNonFinite() {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < rows * columns; i++) {
+            if (!Double.isInfinite(values[i]) && !Double.isNaN(values[i])) {
+                min = Math.min(min, values[i]);
+            }
+        }
+        double worst = min == Double.POSITIVE_INFINITY ? 0 : min - 1;
+        for (int i = 0; i < rows * columns; i++) {
+            if (Double.isInfinite(values[i]) || Double.isNaN(values[i])) {
+                values[i] = worst;
+            }
+        }
+    }
+
+    /**
+     * Picks the columns that get slots: every column with capacity, or if that is more than
+     * rows * rows, the union of the rows best columns of every row.
+     */
+    private void chooseCandidates() {
+        numCandidates = 0;
+        if (rows * rows >= columns) {
+            for (int c = 0; c < columns; c++) {
+                if (capacity[c] > 0) {
+                    candidates[numCandidates++] = c;
+                }
+            }
+            return;
+        }
+        Arrays.fill(isCandidate, 0, columns, false);
+        for (int r = 0; r < rows; r++) {
+            int offset = r * columns;
+            // best[0..found) holds the row's best columns so far, highest value first
+            int found = 0;
+            for (int c = 0; c < columns; c++) {
+                if (capacity[c] == 0 || (found == rows && values[offset + c] <= values[offset + best[found - 1]])) {
+                    continue;
+                }
+                int i = found == rows ? rows - 1 : found++;
+                while (i > 0 && values[offset + best[i - 1]] < values[offset + c]) {
+                    best[i] = best[i - 1];
+                    i--;
+                }
+                best[i] = c;
+            }
+            for (int i = 0; i < found; i++) {
+                isCandidate[best[i]] = true;
+            }
+        }
+        for (int c = 0; c < columns; c++) {
+            if (isCandidate[c]) {
+                candidates[numCandidates++] = c;
+            }
+        }
+    }
+
+    /**
+     * Minimum cost matching of every row to a distinct slot, the cost being minus the value.
+     * Rows and slots are numbered from 1, leaving 0 for the virtual slot the augmenting paths
+     * start from.
+     *
+     * Every row starts with its best value as its potential and takes a free slot of its best
+     * column if there is one, so only the rows competing for full columns need augmenting paths.
+     */
+    private void hungarian(int slots) {
+        Arrays.fill(slotPotential, 0, slots + 1, 0.0);
+        Arrays.fill(rowOfSlot, 0, slots + 1, 0);
+        for (int row = 1; row <= rows; row++) {
+            int offset = (row - 1) * columns;
+            int bestSlot = 0;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int s = 1; s <= slots; s++) {
+                if (values[offset + slotColumn[s]] > bestValue
+                        || (values[offset + slotColumn[s]] == bestValue && rowOfSlot[s] == 0 && rowOfSlot[bestSlot] != 0)) {
+                    bestValue = values[offset + slotColumn[s]];
+                    bestSlot = s;
+                }
+            }
+            rowPotential[row] = -bestValue;
+            rowMatched[row] = rowOfSlot[bestSlot] == 0;
+            if (rowMatched[row]) {
+                rowOfSlot[bestSlot] = row;
+            }
+        }
+        for (int row = 1; row <= rows; row++) {
+            if (rowMatched[row]) {
+                continue;
+            }
+            rowOfSlot[0] = row;
+            int slot = 0;
+            Arrays.fill(minSlack, 0, slots + 1, Double.POSITIVE_INFINITY);
+            Arrays.fill(visited, 0, slots + 1, false);
+            do {
+                visited[slot] = true;
+                int r = rowOfSlot[slot];
+                int offset = (r - 1) * columns;
+                double delta = Double.POSITIVE_INFINITY;
+                int next = 0;
+                for (int s = 1; s <= slots; s++) {
+                    if (visited[s]) {
+                        continue;
+                    }
+                    double slack = -values[offset + slotColumn[s]] - rowPotential[r] - slotPotential[s];
+                    if (slack < minSlack[s]) {
+                        minSlack[s] = slack;
+                        way[s] = slot;
+                    }
+                    // among equally short paths, end at a free slot rather than walking through
+                    // every matched one when Q-values tie
+                    if (minSlack[s] < delta || (minSlack[s] == delta && rowOfSlot[s] == 0 && rowOfSlot[next] != 0)) {
+                        delta = minSlack[s];
+                        next = s;
+                    }
+                }
+                for (int s = 0; s <= slots; s++) {
+                    if (visited[s]) {
+                        rowPotential[rowOfSlot[s]] += delta;
+                        slotPotential[s] -= delta;
+                    } else {
+                        minSlack[s] -= delta;
+                    }
+                }
+                slot = next;
+            } while (rowOfSlot[slot] != 0);
+            // flip the augmenting path
+            do {
+                int previous = way[slot];
+                rowOfSlot[slot] = rowOfSlot[previous];
+                slot = previous;
+            } while (slot != 0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Console and file output written from one background thread, so agents never wait on a terminal
+ * or a disk in the middle of an episode. Everything is written in the order it was submitted, and
+ * whatever is still queued when the JVM shuts down is written first.
+ */
+class AsyncLog {
+
+    private static AsyncLog shared;
+
+    private final ExecutorService writer;
+
+    /**
+     * @return The log shared by every agent in this JVM
+     */
+    public static synchronized AsyncLog shared() {
+        if (shared == null) {
+            shared = new AsyncLog();
+        }
+        return shared;
+    }
+
+    private AsyncLog() {
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.shutdown();
+                try {
+                    writer.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+    }
+
+    public void println(final String line) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(line);
+            }
+        });
+    }
+
+    /**
+     * Appends text to a file, creating it and its directories if needed.
+     */
+    public void append(File file, String text) {
+        write(file, text, true);
+    }
+
+    /**
+     * Replaces the contents of a file.
+     */
+    public void overwrite(File file, String text) {
+        write(file, text, false);
+    }
+
+    /**
+     * Waits until everything submitted so far has been written, e.g. before printing something
+     * directly that has to come after it.
+     */
+    public void flush() {
+        Future<?> done = submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        if (done == null) {
+            return;
+        }
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            // nothing to report for an empty task
+        }
+    }
+
+    private void write(final File file, final String text, final boolean append) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                File parent = file.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                try {
+                    Writer out = new FileWriter(file, append);
+                    try {
+                        out.write(text);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    System.err.println("Failed to write " + file + ". Reason: " + ex.getMessage());
+                }
+            }
+        });
+    }
+
+    private Future<?> submit(Runnable task) {
+        try {
+            return writer.submit(task);
+        } catch (RejectedExecutionException ex) {
+            // shutting down, write it here instead of losing it
+            task.run();
+            return null;
+        }
+    }
+}
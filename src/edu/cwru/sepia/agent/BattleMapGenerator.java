@@ -0,0 +1,147 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlPlayer;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Builds footman battles of any size from one of the shipped maps.
+ *
+ * The shipped map supplies the players, templates and starting health; its units are replaced by two
+ * armies of footmen facing each other across an open gap, player 0 on the left and the enemy on the
+ * right. Player 0's footmen get IDs 0..n-1 and the enemy's n..2n-1. Like in the shipped maps, footmen
+ * stand on every other cell, so every one of them can be reached; a footman walled in by its own army
+ * would make every attack on it fail.
+ *
+ * Usage: BattleMapGenerator [footmen per side] [blocks|lines|scattered] [output file]
+ *
+ * Writes the battle in the same state XML format as the shipped maps, by default to
+ * data/rl_[n]fv[n]f.xml, so it can be used in a configuration or with HeadlessTrainer.
+ */
+class BattleMapGenerator {
+
+    /** Empty cells around the armies. */
+    private static final int MARGIN = 2;
+    /** Empty columns between the two armies. */
+    private static final int GAP = 6;
+    /** Distance between neighbouring footmen of the same army. */
+    private static final int SPACING = 2;
+
+    /**
+     * How each army is arranged on its side of the map.
+     */
+    enum Layout {
+        /** Square-ish block, the whole army fighting at once. */
+        BLOCKS,
+        /** Two ranks deep and as tall as needed, so only the front rank is in contact at first. */
+        LINES,
+        /** Random places in a square area four times the size of the army. */
+        SCATTERED
+    }
+
+    public static void main(String[] args) throws Exception {
+        int footmen = args.length >= 1 ? Integer.parseInt(args[0]) : 50;
+        Layout layout = args.length >= 2 ? Layout.valueOf(args[1].toUpperCase()) : Layout.BLOCKS;
+        File output = new File(args.length >= 3 ? args[2] : "data/rl_" + footmen + "fv" + footmen + "f.xml");
+
+        XmlState map = generate(ParallelTrainer.loadMap(new File("data/rl_5fv5f.xml")), footmen, layout, 12345678);
+        write(map, output);
+        System.out.println("Wrote " + footmen + "v" + footmen + " " + layout.name().toLowerCase() + " battle ("
+                + map.getXExtent() + "x" + map.getYExtent() + ") to " + output);
+    }
+
+    /**
+     * Same as generate(map, footmenPerSide, Layout.BLOCKS, 0).
+     */
+    public static XmlState generate(XmlState map, int footmenPerSide) {
+        return generate(map, footmenPerSide, Layout.BLOCKS, 0);
+    }
+
+    /**
+     * Replaces the units of both players with footmenPerSide footmen each and resizes the map to fit.
+     *
+     * @param map A map with at least one footman per player, used as the template. It is modified in place.
+     * @param seed Seed for the scattered layout
+     * @return The same map
+     */
+    public static XmlState generate(XmlState map, int footmenPerSide, Layout layout, long seed) {
+        int width;
+        switch (layout) {
+            case LINES:
+                width = Math.min(2, footmenPerSide);
+                break;
+            case SCATTERED:
+                width = (int) Math.ceil(Math.sqrt(4.0 * footmenPerSide));
+                break;
+            default:
+                width = (int) Math.ceil(Math.sqrt(footmenPerSide));
+                break;
+        }
+        int height = layout == Layout.SCATTERED ? width : (footmenPerSide + width - 1) / width;
+        int armyWidth = SPACING * (width - 1) + 1;
+        map.setXExtent(2 * MARGIN + 2 * armyWidth + GAP);
+        map.setYExtent(2 * MARGIN + SPACING * (height - 1) + 1);
+
+        Random random = new Random(seed);
+        int[] cells = new int[width * height];
+        for (XmlPlayer player : map.getPlayer()) {
+            if (player.getUnit().isEmpty()) {
+                continue;
+            }
+            XmlUnit template = player.getUnit().get(0);
+            player.getUnit().clear();
+            // player 0 on the left, everyone else on the right
+            int left = player.getID() == 0 ? MARGIN : MARGIN + armyWidth + GAP;
+            int firstId = player.getID() == 0 ? 0 : footmenPerSide;
+
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = i;
+            }
+            if (layout == Layout.SCATTERED) {
+                // partial Fisher-Yates: the first footmenPerSide cells end up a random sample
+                for (int i = 0; i < footmenPerSide; i++) {
+                    int j = i + random.nextInt(cells.length - i);
+                    int swap = cells[i];
+                    cells[i] = cells[j];
+                    cells[j] = swap;
+                }
+            }
+
+            for (int i = 0; i < footmenPerSide; i++) {
+                XmlUnit unit = new XmlUnit();
+                unit.setID(firstId + i);
+                unit.setTemplateID(template.getTemplateID());
+                unit.setCurrentHealth(template.getCurrentHealth());
+                unit.setXPosition(left + SPACING * (cells[i] % width));
+                unit.setYPosition(MARGIN + SPACING * (cells[i] / width));
+                player.getUnit().add(unit);
+            }
+        }
+        map.setNextTargetID(2 * footmenPerSide);
+        return map;
+    }
+
+    /**
+     * Saves the map as state XML.
+     */
+    public static void write(XmlState map, File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try {
+            Marshaller marshaller = JAXBContext.newInstance(XmlState.class).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(map, file);
+        } catch (JAXBException ex) {
+            throw new IOException("Could not write map to " + file, ex);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.History;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The damage dealt over the last few turns, read from the history once per turn.
+ *
+ * Each turn's damage events are kept in a ring of one slot per turn, as parallel primitive arrays.
+ * Recording a turn overwrites the oldest slot and takes its events out of the running totals, so the
+ * damage between a pair of units and the damage each unit dealt and took over the window are O(1)
+ * lookups, and the events of a single recent turn can be walked without going back to the history.
+ *
+ * Pair totals live in an open addressing table keyed by (attacker, defender). A pair whose damage
+ * has left the window keeps its entry with a total of 0 until the next clear, which bounds the table
+ * by the number of pairs that fought during the episode.
+ */
+class DamageWindow {
+
+    /** Window length used unless the agent's damageWindow= option says otherwise. */
+    static final int DEFAULT_TURNS = 3;
+
+    private static final long EMPTY = -1L;
+
+    private final int turns;
+    private final int playernum;
+    private int lastRecorded = -1;
+
+    /** Indexed by slot, turn % turns. */
+    private final int[] slotTurn;
+    private final int[] slotSize;
+    private final int[][] attackers;
+    private final int[][] defenders;
+    private final int[][] damages;
+    private final boolean[][] toPlayer;
+
+    /** Pair totals over the window. */
+    private long[] keys = new long[64];
+    private int[] pairDamage = new int[64];
+    private int[] pairHits = new int[64];
+    private int pairs;
+
+    /** Indexed by unit ID, totals over the window. */
+    private int[] dealt = new int[0];
+    private int[] taken = new int[0];
+
+    /**
+     * @param turns Number of past turns to remember
+     * @param playernum The agent's player, so events can tell our footmen being hit from enemies being hit
+     */
+    DamageWindow(int turns, int playernum) {
+        if (turns < 1) {
+            throw new IllegalArgumentException("The damage window must cover at least one turn, was " + turns);
+        }
+        this.turns = turns;
+        this.playernum = playernum;
+        slotTurn = new int[turns];
+        slotSize = new int[turns];
+        attackers = new int[turns][8];
+        defenders = new int[turns][8];
+        damages = new int[turns][8];
+        toPlayer = new boolean[turns][8];
+        clear();
+    }
+
+    public int getTurns() {
+        return turns;
+    }
+
+    /**
+     * Forgets everything, for the start of an episode.
+     */
+    public void clear() {
+        Arrays.fill(slotTurn, -1);
+        Arrays.fill(slotSize, 0);
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(pairDamage, 0);
+        Arrays.fill(pairHits, 0);
+        pairs = 0;
+        Arrays.fill(dealt, 0);
+        Arrays.fill(taken, 0);
+        lastRecorded = -1;
+    }
+
+    /**
+     * Records every turn before the current one that is not recorded yet and still inside the window.
+     * Calling it again during the same turn does nothing.
+     *
+     * @param turn The current turn
+     */
+    public void catchUp(History.HistoryView historyView, int turn) {
+        for (int t = Math.max(lastRecorded + 1, Math.max(0, turn - turns)); t < turn; t++) {
+            record(t, historyView.getDamageLogs(t));
+        }
+    }
+
+    private void record(int turn, List<DamageLog> damageLogs) {
+        int slot = startTurn(turn, damageLogs.size());
+        int size = 0;
+        for (DamageLog damageLog : damageLogs) {
+            add(slot, size++, damageLog.getAttackerID(), damageLog.getDefenderID(), damageLog.getDamage(),
+                    damageLog.getDefenderController() == playernum);
+        }
+        slotSize[slot] = size;
+        lastRecorded = turn;
+    }
+
+    /**
+     * Records a turn's damage events given as parallel arrays, e.g. read back from an episode trace.
+     * Turns since the last recorded one that were skipped are taken to have had no damage.
+     *
+     * @param turn Turn the damage was dealt on, after the last recorded turn
+     * @param defenderControllers Player owning each defender
+     */
+    public void record(int turn, int count, int[] attackerIds, int[] defenderIds, int[] damage, int[] defenderControllers) {
+        for (int t = Math.max(lastRecorded + 1, turn - turns); t < turn; t++) {
+            slotSize[startTurn(t, 0)] = 0;
+            lastRecorded = t;
+        }
+        int slot = startTurn(turn, count);
+        for (int i = 0; i < count; i++) {
+            add(slot, i, attackerIds[i], defenderIds[i], damage[i], defenderControllers[i] == playernum);
+        }
+        slotSize[slot] = count;
+        lastRecorded = turn;
+    }
+
+    /**
+     * Expires the turn's slot and makes room for its events.
+     *
+     * @return The slot
+     */
+    private int startTurn(int turn, int events) {
+        int slot = turn % turns;
+        expire(slot);
+        slotTurn[slot] = turn;
+        if (attackers[slot].length < events) {
+            int length = Math.max(events, attackers[slot].length * 2);
+            attackers[slot] = Arrays.copyOf(attackers[slot], length);
+            defenders[slot] = Arrays.copyOf(defenders[slot], length);
+            damages[slot] = Arrays.copyOf(damages[slot], length);
+            toPlayer[slot] = Arrays.copyOf(toPlayer[slot], length);
+        }
+        return slot;
+    }
+
+    private void add(int slot, int i, int attackerId, int defenderId, int damage, boolean hitPlayer) {
+        attackers[slot][i] = attackerId;
+        defenders[slot][i] = defenderId;
+        damages[slot][i] = damage;
+        toPlayer[slot][i] = hitPlayer;
+        int entry = entry(attackerId, defenderId);
+        pairDamage[entry] += damage;
+        pairHits[entry]++;
+        ensureUnit(Math.max(attackerId, defenderId));
+        dealt[attackerId] += damage;
+        taken[defenderId] += damage;
+    }
+
+    private void expire(int slot) {
+        for (int i = 0; i < slotSize[slot]; i++) {
+            int entry = entry(attackers[slot][i], defenders[slot][i]);
+            pairDamage[entry] -= damages[slot][i];
+            pairHits[entry]--;
+            dealt[attackers[slot][i]] -= damages[slot][i];
+            taken[defenders[slot][i]] -= damages[slot][i];
+        }
+        slotSize[slot] = 0;
+        slotTurn[slot] = -1;
+    }
+
+    /**
+     * @return The damage the attacker dealt the defender over the window
+     */
+    public int damage(int attackerId, int defenderId) {
+        int entry = find(attackerId, defenderId);
+        return entry < 0 ? 0 : pairDamage[entry];
+    }
+
+    /**
+     * @return The number of times the attacker hit the defender over the window
+     */
+    public int hits(int attackerId, int defenderId) {
+        int entry = find(attackerId, defenderId);
+        return entry < 0 ? 0 : pairHits[entry];
+    }
+
+    /**
+     * @return The damage the unit dealt over the window
+     */
+    public int dealt(int unitId) {
+        return unitId >= 0 && unitId < dealt.length ? dealt[unitId] : 0;
+    }
+
+    /**
+     * @return The damage the unit took over the window
+     */
+    public int taken(int unitId) {
+        return unitId >= 0 && unitId < taken.length ? taken[unitId] : 0;
+    }
+
+    /**
+     * @return The number of damage events on the turn, 0 if it is not in the window
+     */
+    public int events(int turn) {
+        int slot = slotOf(turn);
+        return slot < 0 ? 0 : slotSize[slot];
+    }
+
+    /** The i'th damage event of a turn in the window. */
+    public int eventAttacker(int turn, int i) {
+        return attackers[slotOf(turn)][i];
+    }
+
+    public int eventDefender(int turn, int i) {
+        return defenders[slotOf(turn)][i];
+    }
+
+    public int eventDamage(int turn, int i) {
+        return damages[slotOf(turn)][i];
+    }
+
+    /**
+     * @return True if the i'th damage event of the turn hit one of our footmen
+     */
+    public boolean eventHitPlayer(int turn, int i) {
+        return toPlayer[slotOf(turn)][i];
+    }
+
+    private int slotOf(int turn) {
+        if (turn < 0) {
+            return -1;
+        }
+        int slot = turn % turns;
+        return slotTurn[slot] == turn ? slot : -1;
+    }
+
+    private static long key(int attackerId, int defenderId) {
+        return ((long) attackerId << 32) | (defenderId & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(int attackerId, int defenderId) {
+        long key = key(attackerId, defenderId);
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The table index of the pair, inserting it if it is new
+     */
+    private int entry(int attackerId, int defenderId) {
+        long key = key(attackerId, defenderId);
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        if ((pairs + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return entry(attackerId, defenderId);
+        }
+        keys[i] = key;
+        pairs++;
+        return i;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldDamage = pairDamage;
+        int[] oldHits = pairHits;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        pairDamage = new int[capacity];
+        pairHits = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY) {
+                continue;
+            }
+            int i = hash(oldKeys[j], mask);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            pairDamage[i] = oldDamage[j];
+            pairHits[i] = oldHits[j];
+        }
+    }
+
+    private void ensureUnit(int unitId) {
+        if (unitId < dealt.length) {
+            return;
+        }
+        int length = Math.max(unitId + 1, dealt.length * 2);
+        dealt = Arrays.copyOf(dealt, length);
+        taken = Arrays.copyOf(taken, length);
+    }
+}
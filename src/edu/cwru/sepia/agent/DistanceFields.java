@@ -0,0 +1,239 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Walking distances to every living enemy, for the path features.
+ *
+ * Each enemy gets a distance field: a breadth-first flood fill outwards from the enemy over the map,
+ * moving like a footman does, to any of the 8 neighbouring cells. Cells with a unit on them are
+ * obstacles, so the fill labels them but does not go through them; a footman's own cell is labelled
+ * with the number of steps to the enemy's side, 1 when it is already adjacent and can attack. The fill
+ * stops radius steps out, so a field covers the (2 * radius + 1)^2 cells around its enemy and costs the
+ * same however large the map is. A footman outside the labelled cells is more than radius steps away,
+ * unless the fill ran out of cells before reaching radius: then the enemy is walled in and whoever was
+ * not labelled cannot reach it at all, the case where SEPIA's compound attacks fail.
+ *
+ * A field only depends on the cells within radius of its enemy, so after the grid's update a field is
+ * refilled only if its enemy moved or a unit entered or left one of those cells. Fields are refilled
+ * eagerly in refresh(), on the thread updating the grid, so features can read them from any thread.
+ */
+class DistanceFields {
+
+    /** Radius used unless the agent's pathRadius= option says otherwise. */
+    static final int DEFAULT_RADIUS = 12;
+
+    private static final int NONE = -1;
+    private static final short UNLABELLED = -1;
+
+    private final int radius;
+    private final int size;
+
+    /** Indexed by field. */
+    private short[][] fields = new short[0][];
+    private int[] owner = new int[0];
+    private int[] center = new int[0];
+    private boolean[] enclosed = new boolean[0];
+    private int numFields;
+
+    /** Indexed by unit ID. */
+    private int[] fieldOf = new int[0];
+
+    private final int[] queue;
+    private long refills;
+
+    /**
+     * @param radius Number of steps each field reaches out from its enemy
+     */
+    DistanceFields(int radius) {
+        if (radius < 1 || radius > 1000) {
+            throw new IllegalArgumentException("The path radius must be between 1 and 1000, was " + radius);
+        }
+        this.radius = radius;
+        size = 2 * radius + 1;
+        queue = new int[size * size];
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return The number of fields filled so far
+     */
+    public long getRefills() {
+        return refills;
+    }
+
+    /**
+     * Drops every field, e.g. when the map changed size.
+     */
+    public void clear() {
+        for (int f = 0; f < numFields; f++) {
+            fieldOf[owner[f]] = NONE;
+        }
+        numFields = 0;
+    }
+
+    /**
+     * Brings the fields up to date with the grid's last update: drops the fields of enemies that are
+     * gone and refills the ones whose neighbourhood changed.
+     */
+    public void refresh(UnitGrid grid) {
+        for (int f = 0; f < numFields; f++) {
+            while (f < numFields && (!grid.contains(owner[f]) || !grid.isEnemy(owner[f]))) {
+                release(f);
+            }
+        }
+        for (int i = 0; i < grid.numTracked(); i++) {
+            int id = grid.tracked(i);
+            if (!grid.isEnemy(id)) {
+                continue;
+            }
+            int f = id < fieldOf.length ? fieldOf[id] : NONE;
+            if (f == NONE) {
+                fill(allocate(id), grid);
+            } else if (center[f] != grid.cellOf(id) || touched(f, grid)) {
+                fill(f, grid);
+            }
+        }
+    }
+
+    /**
+     * @return True if the field of the given enemy has one, false if the enemy is not tracked
+     */
+    public boolean has(int enemyId) {
+        return enemyId >= 0 && enemyId < fieldOf.length && fieldOf[enemyId] != NONE;
+    }
+
+    /**
+     * @return The number of steps from the cell to the enemy, or -1 if the cell is not labelled:
+     * further than radius, or cut off if isEnclosed
+     */
+    public int distance(int enemyId, int x, int y, int xExtent) {
+        int f = fieldOf[enemyId];
+        int cx = center[f] % xExtent;
+        int cy = center[f] / xExtent;
+        int lx = x - cx + radius;
+        int ly = y - cy + radius;
+        if (lx < 0 || lx >= size || ly < 0 || ly >= size) {
+            return -1;
+        }
+        return fields[f][ly * size + lx];
+    }
+
+    /**
+     * @return True if the fill of the enemy's field ran out of cells before radius steps, so every
+     * cell it did not label is cut off from the enemy
+     */
+    public boolean isEnclosed(int enemyId) {
+        return enclosed[fieldOf[enemyId]];
+    }
+
+    /**
+     * @return True if a unit entered or left a cell within the field since the last update
+     */
+    private boolean touched(int f, UnitGrid grid) {
+        int xExtent = grid.getXExtent();
+        int cx = center[f] % xExtent;
+        int cy = center[f] / xExtent;
+        for (int i = 0; i < grid.numChanged(); i++) {
+            int cell = grid.changedCell(i);
+            if (Math.abs(cell % xExtent - cx) <= radius && Math.abs(cell / xExtent - cy) <= radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fill(int f, UnitGrid grid) {
+        int xExtent = grid.getXExtent();
+        int yExtent = grid.getYExtent();
+        int centerCell = grid.cellOf(owner[f]);
+        int cx = centerCell % xExtent;
+        int cy = centerCell / xExtent;
+        short[] field = fields[f];
+        Arrays.fill(field, UNLABELLED);
+        center[f] = centerCell;
+        enclosed[f] = true;
+
+        int head = 0;
+        int tail = 0;
+        field[radius * size + radius] = 0;
+        queue[tail++] = radius * size + radius;
+        while (head < tail) {
+            int local = queue[head++];
+            int lx = local % size;
+            int ly = local / size;
+            int steps = field[local];
+            if (steps > 0 && grid.isOccupied(cx + lx - radius, cy + ly - radius)) {
+                // a unit: reached, but not walked through
+                continue;
+            }
+            if (steps == radius) {
+                // the fill goes on past the edge of the field
+                enclosed[f] = false;
+                continue;
+            }
+            for (int dy = -1; dy <= 1; dy++) {
+                int ny = ly + dy;
+                int y = cy + ny - radius;
+                if (y < 0 || y >= yExtent) {
+                    continue;
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = lx + dx;
+                    int x = cx + nx - radius;
+                    if (x < 0 || x >= xExtent) {
+                        continue;
+                    }
+                    int next = ny * size + nx;
+                    if (field[next] == UNLABELLED) {
+                        field[next] = (short) (steps + 1);
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+        refills++;
+    }
+
+    private int allocate(int enemyId) {
+        if (enemyId >= fieldOf.length) {
+            int oldLength = fieldOf.length;
+            fieldOf = Arrays.copyOf(fieldOf, Math.max(enemyId + 1, oldLength * 2));
+            Arrays.fill(fieldOf, oldLength, fieldOf.length, NONE);
+        }
+        if (numFields == owner.length) {
+            int length = Math.max(16, numFields * 2);
+            fields = Arrays.copyOf(fields, length);
+            owner = Arrays.copyOf(owner, length);
+            center = Arrays.copyOf(center, length);
+            enclosed = Arrays.copyOf(enclosed, length);
+        }
+        int f = numFields++;
+        if (fields[f] == null) {
+            fields[f] = new short[size * size];
+        }
+        owner[f] = enemyId;
+        fieldOf[enemyId] = f;
+        return f;
+    }
+
+    /**
+     * Frees field f by moving the last field into its place.
+     */
+    private void release(int f) {
+        fieldOf[owner[f]] = NONE;
+        int last = --numFields;
+        if (f != last) {
+            short[] freed = fields[f];
+            fields[f] = fields[last];
+            fields[last] = freed;
+            owner[f] = owner[last];
+            center[f] = center[last];
+            enclosed[f] = enclosed[last];
+            fieldOf[owner[f]] = f;
+        }
+    }
+}
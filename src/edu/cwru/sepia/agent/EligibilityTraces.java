@@ -0,0 +1,68 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Accumulating eligibility traces for TD(lambda), one per footman, indexed by unit ID.
+ *
+ * Every trace is a feature vector stored in one primitive array at unitId * numFeatures, so decaying
+ * a trace, adding the features of a new decision and stepping the weights along it do not allocate
+ * once the array has grown to the largest unit ID.
+ */
+class EligibilityTraces {
+
+    private final int numFeatures;
+    private double[] traces = new double[0];
+
+    /**
+     * @param numFeatures Length of each trace
+     */
+    public EligibilityTraces(int numFeatures) {
+        this.numFeatures = numFeatures;
+    }
+
+    /**
+     * e = decay * e + features
+     *
+     * @param decay gamma * lambda
+     * @return Index in getTraces() of the footman's updated trace
+     */
+    public int accumulate(int unitId, double decay, double[] features) {
+        int offset = offset(unitId);
+        if (offset + numFeatures > traces.length) {
+            traces = Arrays.copyOf(traces, Math.max(offset + numFeatures, traces.length * 2));
+        }
+        for (int i = 0; i < numFeatures; i++) {
+            traces[offset + i] = decay * traces[offset + i] + features[i];
+        }
+        return offset;
+    }
+
+    /**
+     * @return The backing array of every trace
+     */
+    public double[] getTraces() {
+        return traces;
+    }
+
+    /**
+     * Forgets the footman's trace, e.g. when it dies.
+     */
+    public void reset(int unitId) {
+        int offset = offset(unitId);
+        if (offset < traces.length) {
+            Arrays.fill(traces, offset, offset + numFeatures, 0.0);
+        }
+    }
+
+    /**
+     * Forgets every trace, for the start of an episode.
+     */
+    public void clear() {
+        Arrays.fill(traces, 0.0);
+    }
+
+    private int offset(int unitId) {
+        return unitId * numFeatures;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * The inputs shared by every feature extractor, prepared once per turn and once per pair.
+ *
+ * The units of the pair are always looked up, in the turn's UnitSnapshot. Everything else is only
+ * filled in if the pipeline's extractors asked for it, and reading an input nobody asked for gives
+ * stale values.
+ */
+class FeatureContext {
+
+    /** Unit positions and the Chebyshev distance between the pair. */
+    static final int POSITIONS = 1;
+    /** Hit points of the pair. */
+    static final int HEALTH = 2;
+    /** The damage window, caught up to this turn. */
+    static final int DAMAGE_HISTORY = 4;
+    /** The occupancy grid of every living footman. */
+    static final int NEIGHBOURHOOD = 8;
+    /** The grid's distance fields, see UnitGrid.trackPaths. Needs NEIGHBOURHOOD too. */
+    static final int PATHS = 16;
+
+    private int turn = -1;
+    private int inputs;
+
+    // per turn
+    UnitSnapshot units;
+    int playernum;
+    int numEnemies;
+    /** Null unless NEIGHBOURHOOD was asked for. */
+    UnitGrid grid;
+    /** Null unless DAMAGE_HISTORY was asked for. */
+    DamageWindow damage;
+
+    // per pair
+    int attackerId;
+    int defenderId;
+    boolean attackerAlive;
+    boolean defenderAlive;
+    double attackerHP;
+    double defenderHP;
+    int attackerX;
+    int attackerY;
+    int defenderX;
+    int defenderY;
+    /** Chebyshev distance between the pair, 0 if either is dead. */
+    int distance;
+
+    /**
+     * @return True if the per-turn inputs are already prepared for the given turn
+     */
+    public boolean isValidFor(int turn) {
+        return this.turn == turn;
+    }
+
+    public void invalidate() {
+        turn = -1;
+    }
+
+    /**
+     * Prepares the per-turn inputs.
+     *
+     * @param units The units of the turn
+     * @param grid The occupancy grid, already updated for this turn, or null if NEIGHBOURHOOD is not needed
+     * @param damage The damage window, already caught up to this turn, or null if DAMAGE_HISTORY is not needed
+     * @param inputs The inputs the pipeline needs
+     */
+    public void beginTurn(UnitSnapshot units, int playernum, int numEnemies, UnitGrid grid, DamageWindow damage,
+                          int inputs) {
+        this.units = units;
+        this.playernum = playernum;
+        this.numEnemies = numEnemies;
+        this.grid = grid;
+        this.damage = damage;
+        this.inputs = inputs;
+        turn = units.getTurn();
+    }
+
+    /**
+     * @return A context sharing this one's per-turn inputs, so another thread can evaluate pairs
+     * while this one is in use
+     */
+    public FeatureContext copyTurn() {
+        FeatureContext copy = new FeatureContext();
+        copy.units = units;
+        copy.playernum = playernum;
+        copy.numEnemies = numEnemies;
+        copy.grid = grid;
+        copy.damage = damage;
+        copy.inputs = inputs;
+        copy.turn = turn;
+        return copy;
+    }
+
+    /**
+     * Loads the per-pair inputs.
+     */
+    public void beginPair(int attackerId, int defenderId) {
+        this.attackerId = attackerId;
+        this.defenderId = defenderId;
+        int a = units.indexOf(attackerId);
+        int d = units.indexOf(defenderId);
+        attackerAlive = a >= 0;
+        defenderAlive = d >= 0;
+        if ((inputs & HEALTH) != 0) {
+            attackerHP = a < 0 ? 0 : units.hp(a);
+            defenderHP = d < 0 ? 0 : units.hp(d);
+        }
+        if ((inputs & POSITIONS) != 0) {
+            if (bothAlive()) {
+                attackerX = units.x(a);
+                attackerY = units.y(a);
+                defenderX = units.x(d);
+                defenderY = units.y(d);
+                distance = Math.max(Math.abs(defenderX - attackerX), Math.abs(defenderY - attackerY));
+            } else {
+                distance = 0;
+            }
+        }
+    }
+
+    public boolean bothAlive() {
+        return attackerAlive && defenderAlive;
+    }
+
+    /**
+     * @return True if the enemy damaged our footman within the damage window
+     */
+    public boolean wasHitBy(int footmanId, int enemyId) {
+        return damage.hits(enemyId, footmanId) > 0;
+    }
+}
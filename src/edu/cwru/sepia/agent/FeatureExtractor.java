@@ -0,0 +1,36 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One feature of an (attacker, defender) pair.
+ *
+ * An extractor declares which of the FeatureContext inputs it reads, as a bitwise or of the
+ * FeatureContext input flags, and the pipeline only prepares the inputs some enabled extractor asked
+ * for. Extractors must not keep state between calls; everything they need is in the context.
+ */
+abstract class FeatureExtractor {
+
+    private final String name;
+    private final int inputs;
+
+    /**
+     * @param name Name used in feature lists and weight file layouts
+     * @param inputs FeatureContext input flags read by extract
+     */
+    FeatureExtractor(String name, int inputs) {
+        this.name = name;
+        this.inputs = inputs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return The feature of the pair loaded into the context
+     */
+    abstract double extract(FeatureContext context);
+}
@@ -0,0 +1,188 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Standardizes feature vectors by the running mean and variance of every feature, so the weights see
+ * features of about unit scale whether a feature is a distance plus 1000 or a 0/1 flag.
+ *
+ * observe() takes in raw vectors (Welford's method, per feature) and normalize() rewrites vectors in
+ * place as (f_i - mean_i) / sd_i. The bias feature at index 0 is left as it is. A feature whose
+ * variance is still (about) zero is only centered, and vectors pass through unchanged until anything
+ * has been observed. normalize() only reads the statistics, so it can run on several threads while
+ * nothing is being observed.
+ *
+ * Weights trained on normalized features are only meaningful with the same statistics, so the
+ * normalizer is saved next to the weights, to WeightCheckpointer.normalizerFile, written atomically like
+ * the checkpoints themselves. Big-endian layout:
+ *
+ * <pre>
+ * int     magic "RLFN"
+ * int     format version
+ * short   length of the feature layout, then the layout as UTF-8
+ * long    number of vectors observed
+ * int     number of features, then the means as doubles, then the sums of squared deviations
+ * long    CRC32 of everything above
+ * </pre>
+ */
+class FeatureNormalizer {
+
+    private static final int MAGIC = 0x524C464E;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final double MIN_VARIANCE = 1e-12;
+
+    private long count;
+    private final double[] mean;
+    private final double[] m2;
+    /** normalize() subtracts shift and multiplies by scale, both brought up to date by observe(). */
+    private final double[] shift;
+    private final double[] scale;
+
+    FeatureNormalizer(int size) {
+        mean = new double[size];
+        m2 = new double[size];
+        shift = new double[size];
+        scale = new double[size];
+        Arrays.fill(scale, 1);
+    }
+
+    private FeatureNormalizer(long count, double[] mean, double[] m2) {
+        this(mean.length);
+        this.count = count;
+        System.arraycopy(mean, 0, this.mean, 0, mean.length);
+        System.arraycopy(m2, 0, this.m2, 0, m2.length);
+        updateScale();
+    }
+
+    public int size() {
+        return mean.length;
+    }
+
+    /**
+     * @return The number of vectors observed
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Adds raw feature vectors to the statistics.
+     *
+     * @param features Buffer holding the vectors, size() features each, back to back
+     * @param offset Index of the first feature of the first vector
+     * @param rows Number of vectors
+     */
+    public void observe(double[] features, int offset, int rows) {
+        int n = mean.length;
+        for (int row = 0; row < rows; row++) {
+            count++;
+            int f = offset + row * n;
+            for (int i = 1; i < n; i++) {
+                double delta = features[f + i] - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (features[f + i] - mean[i]);
+            }
+        }
+        updateScale();
+    }
+
+    private void updateScale() {
+        for (int i = 1; i < mean.length; i++) {
+            double variance = count < 2 ? 0 : m2[i] / (count - 1);
+            shift[i] = mean[i];
+            scale[i] = variance < MIN_VARIANCE ? 1 : 1 / Math.sqrt(variance);
+        }
+    }
+
+    /**
+     * Standardizes feature vectors in place.
+     *
+     * @param features Buffer holding the vectors, size() features each, back to back
+     * @param offset Index of the first feature of the first vector
+     * @param rows Number of vectors
+     */
+    public void normalize(double[] features, int offset, int rows) {
+        int n = mean.length;
+        for (int row = 0; row < rows; row++) {
+            int f = offset + row * n;
+            for (int i = 1; i < n; i++) {
+                features[f + i] = (features[f + i] - shift[i]) * scale[i];
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the statistics, for a checkpoint
+     */
+    public FeatureNormalizer copy() {
+        return new FeatureNormalizer(count, mean, m2);
+    }
+
+    /**
+     * Atomically replaces the file with the normalizer's statistics.
+     *
+     * @param layout The feature layout the statistics are for
+     */
+    public static void write(File file, String layout, FeatureNormalizer normalizer) throws IOException {
+        byte[] layoutBytes = layout.getBytes(UTF8);
+        int n = normalizer.size();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 2 + layoutBytes.length + 8 + 4 + 16 * n + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putShort((short) layoutBytes.length);
+        buffer.put(layoutBytes);
+        buffer.putLong(normalizer.count);
+        buffer.putInt(n);
+        for (double mean : normalizer.mean) {
+            buffer.putDouble(mean);
+        }
+        for (double m2 : normalizer.m2) {
+            buffer.putDouble(m2);
+        }
+        WeightCheckpointer.writeAtomically(file, buffer);
+    }
+
+    /**
+     * Reads statistics written by write.
+     *
+     * @param layout The feature layout the statistics must be for
+     * @throws IOException If the file is missing, truncated, of another format version, for another
+     * feature layout or fails its checksum
+     */
+    public static FeatureNormalizer read(File file, String layout) throws IOException {
+        ByteBuffer buffer = WeightCheckpointer.map(file);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a feature normalizer.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has normalizer format version " + version + ", expected " + VERSION + ".");
+            }
+            byte[] layoutBytes = new byte[buffer.getShort()];
+            buffer.get(layoutBytes);
+            String saved = new String(layoutBytes, UTF8);
+            if (!saved.equals(layout)) {
+                throw new IOException(file + " holds features " + saved + ", expected " + layout + ".");
+            }
+            long count = buffer.getLong();
+            double[] mean = new double[buffer.getInt()];
+            double[] m2 = new double[mean.length];
+            for (int i = 0; i < mean.length; i++) {
+                mean[i] = buffer.getDouble();
+            }
+            for (int i = 0; i < m2.length; i++) {
+                m2[i] = buffer.getDouble();
+            }
+            return new FeatureNormalizer(count, mean, m2);
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException or a negative array size from a truncated file
+            throw new IOException(file + " is truncated or corrupt.", ex);
+        }
+    }
+}
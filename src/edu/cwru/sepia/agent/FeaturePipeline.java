@@ -0,0 +1,67 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * A fixed list of enabled feature extractors, evaluated in order into a primitive feature vector.
+ *
+ * The inputs of every extractor are merged when the pipeline is compiled, so each input is prepared
+ * once per pair (or turn) no matter how many extractors read it, and inputs no enabled extractor
+ * reads are never computed. Create pipelines with FeatureRegistry.compile.
+ */
+class FeaturePipeline {
+
+    private final FeatureExtractor[] extractors;
+    private final int inputs;
+    private final String layout;
+
+    FeaturePipeline(FeatureExtractor[] extractors) {
+        this.extractors = extractors;
+        int inputs = 0;
+        StringBuilder layout = new StringBuilder();
+        for (FeatureExtractor extractor : extractors) {
+            inputs |= extractor.getInputs();
+            if (layout.length() > 0) {
+                layout.append(',');
+            }
+            layout.append(extractor.getName());
+        }
+        this.inputs = inputs;
+        this.layout = layout.toString();
+    }
+
+    /**
+     * @return The length of the feature vector
+     */
+    public int size() {
+        return extractors.length;
+    }
+
+    /**
+     * @return The feature names in vector order, comma separated. Stored with the weights.
+     */
+    public String getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return The FeatureContext inputs needed by the enabled extractors
+     */
+    public int getInputs() {
+        return inputs;
+    }
+
+    public boolean needs(int input) {
+        return (inputs & input) != 0;
+    }
+
+    /**
+     * Writes the features of the pair into fv[offset] to fv[offset + size() - 1].
+     *
+     * @param context Context already prepared for this turn
+     */
+    public void evaluate(FeatureContext context, int attackerId, int defenderId, double[] fv, int offset) {
+        context.beginPair(attackerId, defenderId);
+        for (int i = 0; i < extractors.length; i++) {
+            fv[offset + i] = extractors[i].extract(context);
+        }
+    }
+}
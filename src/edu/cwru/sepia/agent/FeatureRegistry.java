@@ -0,0 +1,156 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.cwru.sepia.agent.FeatureContext.*;
+
+/**
+ * Every feature the agent knows, by name.
+ *
+ * The agent uses the features listed in its features= option, comma separated, in that order, and
+ * DEFAULT_FEATURES otherwise. New features only need to be registered here; a disabled feature costs
+ * nothing per pair.
+ */
+class FeatureRegistry {
+
+    /** The features the agent has always used. */
+    static final String DEFAULT_FEATURES = "bias,hpRatio,distance,isClosest,enemiesMinusFriendsAdjacent";
+
+    private static final Map<String, FeatureExtractor> extractors = new LinkedHashMap<String, FeatureExtractor>();
+
+    static {
+        // constant, removes any offset from 0 in the Q-function
+        register(new FeatureExtractor("bias", 0) {
+            @Override
+            double extract(FeatureContext c) {
+                return 1.0;
+            }
+        });
+        // share of the pair's combined health that is ours
+        register(new FeatureExtractor("hpRatio", HEALTH) {
+            @Override
+            double extract(FeatureContext c) {
+                double attackerHP = c.attackerHP + c.defenderHP == 0 ? 1 : c.attackerHP;
+                return attackerHP / (attackerHP + c.defenderHP);
+            }
+        });
+        // Chebyshev distance to the defender, offset by 1000
+        register(new FeatureExtractor("distance", POSITIONS | HEALTH) {
+            @Override
+            double extract(FeatureContext c) {
+                return c.attackerHP == 0 || c.defenderHP == 0 ? 0.0 : c.distance + 1000;
+            }
+        });
+        // no other enemy is closer to the attacker than this one
+        register(new FeatureExtractor("isClosest", NEIGHBOURHOOD) {
+            @Override
+            double extract(FeatureContext c) {
+                if (!c.grid.contains(c.attackerId) || !c.grid.contains(c.defenderId)) {
+                    return 0.0;
+                }
+                return c.grid.isClosest(c.attackerId, c.defenderId) ? 10.0 : 0.0;
+            }
+        });
+        // enemies next to the attacker minus the other friendly footmen next to it
+        register(new FeatureExtractor("enemiesMinusFriendsAdjacent", NEIGHBOURHOOD) {
+            @Override
+            double extract(FeatureContext c) {
+                if (!c.grid.contains(c.attackerId)) {
+                    return 0.0;
+                }
+                int x = c.grid.getX(c.attackerId);
+                int y = c.grid.getY(c.attackerId);
+                // the attacker is counted among its own neighbours
+                return c.grid.countWithin(x, y, 1, true) - (c.grid.countWithin(x, y, 1, false) - 1);
+            }
+        });
+        // the defender hit the attacker within the damage window, so it is probably fighting back
+        register(new FeatureExtractor("justAttacked", DAMAGE_HISTORY) {
+            @Override
+            double extract(FeatureContext c) {
+                return c.wasHitBy(c.attackerId, c.defenderId) ? -10.0 : 0.0;
+            }
+        });
+        // damage the defender dealt the attacker within the damage window
+        register(new FeatureExtractor("damageFromDefender", DAMAGE_HISTORY) {
+            @Override
+            double extract(FeatureContext c) {
+                return c.damage.damage(c.defenderId, c.attackerId);
+            }
+        });
+        // steps the attacker has to walk to reach the defender, around the units in the way
+        register(new FeatureExtractor("pathDistance", NEIGHBOURHOOD | PATHS) {
+            @Override
+            double extract(FeatureContext c) {
+                if (!hasPath(c) || !c.grid.isReachable(c.attackerId, c.defenderId)) {
+                    return 0.0;
+                }
+                return c.grid.pathDistance(c.attackerId, c.defenderId);
+            }
+        });
+        // the defender is walled in by other units, so attacking it would fail
+        register(new FeatureExtractor("unreachable", NEIGHBOURHOOD | PATHS) {
+            @Override
+            double extract(FeatureContext c) {
+                return hasPath(c) && !c.grid.isReachable(c.attackerId, c.defenderId) ? -10.0 : 0.0;
+            }
+        });
+        // isClosest by walking distance: no other enemy can be reached in fewer steps
+        register(new FeatureExtractor("isClosestByPath", NEIGHBOURHOOD | PATHS) {
+            @Override
+            double extract(FeatureContext c) {
+                if (!hasPath(c) || !c.grid.isReachable(c.attackerId, c.defenderId)) {
+                    return 0.0;
+                }
+                return c.grid.nearestEnemyPathDistance(c.attackerId) >= c.grid.pathDistance(c.attackerId, c.defenderId) ? 10.0 : 0.0;
+            }
+        });
+        // number of enemies at least as far from the attacker as the defender, so the closest scores highest
+        register(new FeatureExtractor("distanceIndex", POSITIONS | NEIGHBOURHOOD) {
+            @Override
+            double extract(FeatureContext c) {
+                if (!c.bothAlive()) {
+                    return 0.0;
+                }
+                int closer = c.distance == 0 ? 0 : c.grid.countWithin(c.attackerX, c.attackerY, c.distance - 1, true);
+                return c.numEnemies - closer;
+            }
+        });
+    }
+
+    private static boolean hasPath(FeatureContext c) {
+        return c.grid.contains(c.attackerId) && c.grid.getPaths().has(c.defenderId);
+    }
+
+    static void register(FeatureExtractor extractor) {
+        extractors.put(extractor.getName(), extractor);
+    }
+
+    static Set<String> names() {
+        return Collections.unmodifiableSet(extractors.keySet());
+    }
+
+    /**
+     * @param features Comma separated feature names
+     * @throws IllegalArgumentException If a feature is unknown or listed twice
+     */
+    static FeaturePipeline compile(String features) {
+        List<FeatureExtractor> enabled = new ArrayList<FeatureExtractor>();
+        for (String name : features.split(",")) {
+            FeatureExtractor extractor = extractors.get(name.trim());
+            if (extractor == null) {
+                throw new IllegalArgumentException("Unknown feature \"" + name.trim() + "\", expected one of " + names() + ".");
+            }
+            if (enabled.contains(extractor)) {
+                throw new IllegalArgumentException("Feature \"" + name.trim() + "\" is listed twice.");
+            }
+            enabled.add(extractor);
+        }
+        return new FeaturePipeline(enabled.toArray(new FeatureExtractor[enabled.size()]));
+    }
+}
@@ -0,0 +1,117 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trains RLAgent against combatAgent without a visual agent, a configuration file or any per-episode
+ * console output, and reports the training throughput.
+ *
+ * Usage: HeadlessTrainer [key=value ...]
+ *
+ * <pre>
+ * map=data/rl_5fv5f.xml      train on a map file, or
+ * footmen=5,50,200           train on generated NvN battles, one run per army size
+ * layout=blocks              blocks, lines or scattered, see BattleMapGenerator
+ * episodes=100               episodes per run
+ * warmup=0                   untimed episodes played first on a throwaway agent, to warm up the JIT
+ * load=false                 start from agent_weights/weights.txt
+ * seed=12345678              seed of the agent, the model and the generated maps
+ * </pre>
+ *
+ * Any other key=value argument is handed to the agent, e.g. replay=4096. Each run prints one line
+ * with its episodes/sec and turns/sec, so runs over several army sizes show how throughput scales.
+ * The agent of the last run saves its weights to agent_weights/weights.txt as usual; warm-up agents and
+ * the runs before the last do not save, so only one agent ever writes the checkpoint files. Stalled
+ * episodes are ended as stalemates, see ParallelTrainer.STALEMATE_OPTIONS; stalemateTurns=0 and
+ * stalemateFailures=0 turn that off.
+ */
+public class HeadlessTrainer {
+
+    private static final List<String> TRAINER_KEYS =
+            Arrays.asList("map", "footmen", "layout", "episodes", "warmup", "load", "seed");
+
+    public static void main(String[] args) throws Exception {
+        ParallelTrainer.exitOnAgentFailure();
+        AgentOptions options = new AgentOptions(args, 0);
+        int episodes = options.getInt("episodes", 100);
+        int warmup = options.getInt("warmup", 0);
+        long seed = options.getLong("seed", 12345678);
+        BattleMapGenerator.Layout layout =
+                BattleMapGenerator.Layout.valueOf(options.getString("layout", "blocks").toUpperCase());
+
+        List<String> agentArgs = new ArrayList<String>();
+        agentArgs.add(Integer.toString(episodes));
+        agentArgs.add(options.getString("load", "false"));
+        agentArgs.add("quiet=true");
+        agentArgs.addAll(ParallelTrainer.STALEMATE_OPTIONS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split > 0 && !TRAINER_KEYS.contains(arg.substring(0, split).trim())) {
+                agentArgs.add(arg);
+            }
+        }
+
+        List<String> maps = new ArrayList<String>();
+        if (options.has("footmen")) {
+            maps.addAll(Arrays.asList(options.getString("footmen", "").split(",")));
+        } else {
+            maps.add(options.getString("map", "data/rl_5fv5f.xml"));
+        }
+
+        System.out.println(String.format("%-22s %8s %9s %10s %8s %12s %10s  %s",
+                "Map", "Footmen", "Episodes", "Turns", "Seconds", "Episodes/sec", "Turns/sec", "Test wins"));
+        for (int i = 0; i < maps.size(); i++) {
+            String name = maps.get(i).trim();
+            boolean generated = options.has("footmen");
+            int footmen = generated ? Integer.parseInt(name) : 0;
+            XmlState map = generated ? generate(footmen, layout, seed) : ParallelTrainer.loadMap(new File(name));
+            if (generated) {
+                name = footmen + "v" + footmen + " " + layout.name().toLowerCase();
+            } else {
+                footmen = map.getPlayer().get(0).getUnit().size();
+            }
+
+            if (warmup > 0) {
+                run(map, agentArgs, seed, warmup, false);
+            }
+            long start = System.nanoTime();
+            RLAgent agent = run(map, agentArgs, seed, episodes, i == maps.size() - 1);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-22s %8d %9d %10d %8.1f %12.2f %10.0f  %d/%d",
+                    name, footmen, episodes, agent.getTurnsPlayed(), seconds, episodes / seconds,
+                    agent.getTurnsPlayed() / seconds, agent.getTestWins(), agent.getTestEpisodes()));
+        }
+        // the environment's agent threads are not daemons and never finish on their own
+        System.exit(0);
+    }
+
+    private static XmlState generate(int footmen, BattleMapGenerator.Layout layout, long seed) throws Exception {
+        return BattleMapGenerator.generate(ParallelTrainer.loadMap(new File("data/rl_5fv5f.xml")), footmen, layout, seed);
+    }
+
+    /**
+     * Plays the given number of episodes with a fresh agent and environment.
+     *
+     * @param save False to keep the agent from saving its weights, overriding any save= argument
+     * @return The agent, for its statistics
+     */
+    private static RLAgent run(XmlState map, List<String> agentArgs, long seed, int episodes, boolean save)
+            throws Exception {
+        List<String> args = new ArrayList<String>(agentArgs);
+        if (!save) {
+            args.add("save=false");
+        }
+        RLAgent agent = new RLAgent(0, args.toArray(new String[args.size()]), null, seed);
+        Environment environment = ParallelTrainer.newEnvironment(map, agent, (int) seed);
+        for (int episode = 0; episode < episodes; episode++) {
+            environment.runEpisode();
+        }
+        return agent;
+    }
+}
@@ -0,0 +1,300 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains RLAgent under many hyperparameter settings at once and compares their learning curves.
+ *
+ * Every job is an isolated headless training run, like one of HeadlessTrainer's, with its own agent,
+ * weights and environment; jobs run concurrently on a fixed pool of threads. Each setting is trained
+ * once per seed, and seed i of every setting uses the same agent and environment seed, so settings are
+ * compared on the same exploration draws. The enemy's combatAgent draws from Math.random, so two runs
+ * of the same job are not identical, only close.
+ *
+ * Usage: HyperparameterSweep [key=value ...]
+ *
+ * <pre>
+ * sweep.gamma=0.8,0.9,0.99         grid: every combination of the listed values is a setting
+ * sweep.learningRate=1e-5:1e-3     a range: random search, sampled uniformly
+ * sweep.epsilon=log:0.001:0.1      a range sampled log-uniformly
+ * samples=20                       settings drawn when any key is a range
+ * seeds=1                          runs per setting
+ * seed=12345678                    seed of the first run of every setting and of the random search
+ * jobs=                            concurrent runs, default all cores
+ * map=data/rl_5fv5f.xml            map to train on, or
+ * footmen=5                        a generated NvN battle, see BattleMapGenerator
+ * episodes=150                     episodes per run
+ * report=sweep.csv                 where every run's learning curve is written
+ * </pre>
+ *
+ * Any key after "sweep." can be swept, e.g. sweep.testEpisodes, sweep.exploreEpisodes or sweep.lambda;
+ * any other key=value argument is handed to every agent unchanged. The agents do not save their weights,
+ * and end stalled episodes as stalemates as HeadlessTrainer's do.
+ * When all runs are done the settings are printed best first, ranked by the mean over their seeds of
+ * the last point of the learning curve printTestData would print.
+ */
+public class HyperparameterSweep {
+
+    private static final String SWEEP = "sweep.";
+    private static final List<String> SWEEP_KEYS = Arrays.asList(
+            "samples", "seeds", "seed", "jobs", "map", "footmen", "layout", "episodes", "report");
+
+    public static void main(String[] args) throws Exception {
+        ParallelTrainer.exitOnAgentFailure();
+        AgentOptions options = new AgentOptions(args, 0);
+        int seeds = options.getInt("seeds", 1);
+        long seed = options.getLong("seed", 12345678);
+        int jobs = options.getInt("jobs", Runtime.getRuntime().availableProcessors());
+        int episodes = options.getInt("episodes", 150);
+
+        Map<String, String> specs = new LinkedHashMap<String, String>();
+        List<String> fixedArgs = new ArrayList<String>();
+        fixedArgs.add(Integer.toString(episodes));
+        fixedArgs.add("false");
+        fixedArgs.add("quiet=true");
+        fixedArgs.add("save=false");
+        fixedArgs.addAll(ParallelTrainer.STALEMATE_OPTIONS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                continue;
+            }
+            String key = arg.substring(0, split).trim();
+            if (key.startsWith(SWEEP)) {
+                specs.put(key.substring(SWEEP.length()), arg.substring(split + 1).trim());
+            } else if (!SWEEP_KEYS.contains(key)) {
+                fixedArgs.add(arg);
+            }
+        }
+        if (specs.isEmpty()) {
+            System.err.println("Nothing to sweep, give at least one sweep.key=values argument.");
+            System.exit(1);
+        }
+        List<Map<String, String>> settings = settings(specs, options.getInt("samples", 20), new Random(seed));
+
+        final XmlState map;
+        if (options.has("footmen")) {
+            map = BattleMapGenerator.generate(ParallelTrainer.loadMap(new File("data/rl_5fv5f.xml")),
+                    options.getInt("footmen", 5),
+                    BattleMapGenerator.Layout.valueOf(options.getString("layout", "blocks").toUpperCase()), seed);
+        } else {
+            map = ParallelTrainer.loadMap(new File(options.getString("map", "data/rl_5fv5f.xml")));
+        }
+
+        System.out.println("Running " + settings.size() + " settings x " + seeds + " seeds of " + episodes
+                + " episodes on " + jobs + " threads.");
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        List<Future<Run>> futures = new ArrayList<Future<Run>>();
+        long start = System.nanoTime();
+        for (final Map<String, String> setting : settings) {
+            for (int i = 0; i < seeds; i++) {
+                final long runSeed = seed + i;
+                final List<String> runArgs = new ArrayList<String>(fixedArgs);
+                for (Map.Entry<String, String> value : setting.entrySet()) {
+                    runArgs.add(value.getKey() + "=" + value.getValue());
+                }
+                futures.add(pool.submit(new Callable<Run>() {
+                    @Override
+                    public Run call() throws Exception {
+                        return run(map, setting, runArgs, runSeed);
+                    }
+                }));
+            }
+        }
+
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            for (Future<Run> future : futures) {
+                runs.add(future.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        File report = new File(options.getString("report", "sweep.csv"));
+        writeReport(report, runs, specs.keySet());
+        printRanking(runs, seeds);
+        System.out.println(String.format(Locale.ROOT, "%d runs in %.1f s, learning curves written to %s.",
+                runs.size(), seconds, report));
+        // the environments' agent threads are not daemons and never finish on their own
+        System.exit(0);
+    }
+
+    /**
+     * One training run.
+     */
+    static class Run {
+        Map<String, String> setting;
+        long seed;
+        List<Double> curve;
+        /** The games played before each point of the curve, as printTestData labels them. */
+        List<Long> gamesPlayed;
+        int testEpisodes;
+        int testWins;
+
+        /**
+         * @return The last point of the learning curve, NaN if it has none
+         */
+        double finalReward() {
+            return curve.isEmpty() ? Double.NaN : curve.get(curve.size() - 1);
+        }
+    }
+
+    /**
+     * Expands the specs into settings. All lists make a full grid; if any spec is a range, samples
+     * settings are drawn instead, each list picked from uniformly.
+     */
+    static List<Map<String, String>> settings(Map<String, String> specs, int samples, Random random) {
+        boolean randomSearch = false;
+        for (String spec : specs.values()) {
+            randomSearch |= spec.contains(":");
+        }
+        List<Map<String, String>> settings = new ArrayList<Map<String, String>>();
+        if (randomSearch) {
+            for (int i = 0; i < samples; i++) {
+                Map<String, String> setting = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, String> spec : specs.entrySet()) {
+                    setting.put(spec.getKey(), sample(spec.getKey(), spec.getValue(), random));
+                }
+                settings.add(setting);
+            }
+            return settings;
+        }
+        settings.add(new LinkedHashMap<String, String>());
+        for (Map.Entry<String, String> spec : specs.entrySet()) {
+            List<Map<String, String>> expanded = new ArrayList<Map<String, String>>();
+            for (Map<String, String> setting : settings) {
+                for (String value : spec.getValue().split(",")) {
+                    Map<String, String> next = new LinkedHashMap<String, String>(setting);
+                    next.put(spec.getKey(), value.trim());
+                    expanded.add(next);
+                }
+            }
+            settings = expanded;
+        }
+        return settings;
+    }
+
+    /**
+     * Draws one value of a spec: a range lo:hi (uniform), log:lo:hi (log-uniform), or a list to pick from.
+     */
+    private static String sample(String key, String spec, Random random) {
+        if (!spec.contains(":")) {
+            String[] values = spec.split(",");
+            return values[random.nextInt(values.length)].trim();
+        }
+        String[] parts = spec.split(":");
+        boolean log = parts[0].trim().equals("log");
+        if (parts.length != (log ? 3 : 2)) {
+            throw new IllegalArgumentException("Bad range \"" + spec + "\" for " + key + ", expected lo:hi or log:lo:hi.");
+        }
+        double lo = Double.parseDouble(parts[log ? 1 : 0].trim());
+        double hi = Double.parseDouble(parts[log ? 2 : 1].trim());
+        if (log) {
+            if (lo <= 0 || hi <= 0) {
+                throw new IllegalArgumentException("Log range \"" + spec + "\" for " + key + " must be positive.");
+            }
+            return Double.toString(Math.exp(Math.log(lo) + random.nextDouble() * (Math.log(hi) - Math.log(lo))));
+        }
+        return Double.toString(lo + random.nextDouble() * (hi - lo));
+    }
+
+    private static Run run(XmlState map, Map<String, String> setting, List<String> args, long seed) throws Exception {
+        RLAgent agent = new RLAgent(0, args.toArray(new String[args.size()]), null, seed);
+        Environment environment = ParallelTrainer.newEnvironment(map, agent, (int) seed);
+        for (int episode = 0; episode < agent.numEpisodes; episode++) {
+            environment.runEpisode();
+        }
+        Run run = new Run();
+        run.setting = setting;
+        run.seed = seed;
+        run.curve = agent.getAverageRewards();
+        run.gamesPlayed = agent.getCurveGamesPlayed();
+        run.testEpisodes = agent.getTestEpisodes();
+        run.testWins = agent.getTestWins();
+        return run;
+    }
+
+    /**
+     * Writes one row per point of every run's learning curve, with the games played before the point
+     * as the agent counted them for its own schedule.
+     */
+    private static void writeReport(File report, List<Run> runs, Iterable<String> keys) throws IOException {
+        File directory = report.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        PrintWriter out = new PrintWriter(report, "UTF-8");
+        try {
+            StringBuilder header = new StringBuilder();
+            for (String key : keys) {
+                header.append(key).append(',');
+            }
+            out.println(header + "seed,gamesPlayed,averageReward,testWins,testEpisodes");
+            for (Run run : runs) {
+                StringBuilder setting = new StringBuilder();
+                for (String key : keys) {
+                    setting.append(run.setting.get(key)).append(',');
+                }
+                for (int i = 0; i < run.curve.size(); i++) {
+                    out.println(String.format(Locale.ROOT, "%s%d,%d,%.4f,%d,%d", setting, run.seed, run.gamesPlayed.get(i),
+                            run.curve.get(i), run.testWins, run.testEpisodes));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Prints every setting's mean final reward and test win rate over its seeds, best first.
+     */
+    private static void printRanking(List<Run> runs, int seeds) {
+        final Map<Map<String, String>, double[]> totals = new LinkedHashMap<Map<String, String>, double[]>();
+        for (Run run : runs) {
+            double[] total = totals.get(run.setting);
+            if (total == null) {
+                total = new double[3];
+                totals.put(run.setting, total);
+            }
+            total[0] += run.finalReward() / seeds;
+            total[1] += run.testWins;
+            total[2] += run.testEpisodes;
+        }
+        List<Map<String, String>> ranked = new ArrayList<Map<String, String>>(totals.keySet());
+        Collections.sort(ranked, new Comparator<Map<String, String>>() {
+            @Override
+            public int compare(Map<String, String> a, Map<String, String> b) {
+                // NaN (no curve) sorts last
+                return Double.compare(orLowest(totals.get(b)[0]), orLowest(totals.get(a)[0]));
+            }
+        });
+        System.out.println(String.format("%-14s %-12s  %s", "Final reward", "Test wins", "Setting"));
+        for (Map<String, String> setting : ranked) {
+            double[] total = totals.get(setting);
+            System.out.println(String.format(Locale.ROOT, "%14.2f %-12s  %s", total[0],
+                    (int) total[1] + "/" + (int) total[2], setting));
+        }
+    }
+
+    private static double orLowest(double value) {
+        return Double.isNaN(value) ? Double.NEGATIVE_INFINITY : value;
+    }
+}
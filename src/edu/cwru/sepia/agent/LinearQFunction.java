@@ -0,0 +1,209 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Linear Q-function approximator, Q(s,a) = w . f(s,a), over primitive arrays.
+ *
+ * Feature vectors are read straight out of caller owned buffers (optionally at an offset, so a whole
+ * row-major matrix of feature vectors can be scored without copying), so nothing here allocates
+ * once the weights exist. values() scores a batch of feature vectors at once and is what the agent's
+ * target selection and next state values run on.
+ */
+class LinearQFunction {
+
+    private final double[] weights;
+    private Optimizer optimizer;
+    /**
+     * Bumped after every update, by whichever agent made it, so Q-values cached by any agent sharing the
+     * weights can tell when they are stale.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @param weights Initial weights. The array is used as is, not copied.
+     */
+    public LinearQFunction(double[] weights) {
+        this.weights = weights;
+    }
+
+    /**
+     * Creates a weight vector with a bias weight of 1 and every other weight drawn uniformly
+     * from [-1, 1).
+     */
+    public static LinearQFunction random(int numFeatures, java.util.Random random) {
+        double[] weights = new double[numFeatures];
+        weights[0] = 1.0;
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] = random.nextDouble() * 2 - 1;
+        }
+        return new LinearQFunction(weights);
+    }
+
+    /**
+     * Makes update() step through the optimizer, e.g. for per-weight step sizes. Without one, updates
+     * are plain gradient steps.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * @return The number of updates made so far. Read it before using the weights: anything computed
+     * with them is current for as long as the version has not changed.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    public int size() {
+        return weights.length;
+    }
+
+    /**
+     * @return The live weight vector, not a copy
+     */
+    public double[] getWeights() {
+        return weights;
+    }
+
+    public double value(double[] features) {
+        return value(features, 0);
+    }
+
+    /**
+     * @param features Buffer holding the feature vector
+     * @param offset Index of the first feature in the buffer
+     * @return The dot product of the weights with the feature vector
+     */
+    public double value(double[] features, int offset) {
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i] * features[offset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Scores a whole row-major matrix of feature vectors in one call, e.g. every enemy a footman could
+     * attack this turn. Rows are taken four at a time so each weight is loaded once per four dot
+     * products, with the remainder scored one by one; every row's sum is accumulated in the same order
+     * as value(), so the results are identical to calling it per row.
+     *
+     * @param features Buffer holding the matrix, size() features per row
+     * @param offset Index of the first feature of the first row
+     * @param rows Number of feature vectors
+     * @param out Receives the Q-values, one per row
+     * @param outOffset Index in out of the first row's Q-value
+     */
+    public void values(double[] features, int offset, int rows, double[] out, int outOffset) {
+        int n = weights.length;
+        int row = 0;
+        for (; row + 4 <= rows; row += 4) {
+            int f0 = offset + row * n;
+            int f1 = f0 + n;
+            int f2 = f1 + n;
+            int f3 = f2 + n;
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            double s3 = 0;
+            for (int i = 0; i < n; i++) {
+                double w = weights[i];
+                s0 += w * features[f0 + i];
+                s1 += w * features[f1 + i];
+                s2 += w * features[f2 + i];
+                s3 += w * features[f3 + i];
+            }
+            out[outOffset + row] = s0;
+            out[outOffset + row + 1] = s1;
+            out[outOffset + row + 2] = s2;
+            out[outOffset + row + 3] = s3;
+        }
+        for (; row < rows; row++) {
+            out[outOffset + row] = value(features, offset + row * n);
+        }
+    }
+
+    /**
+     * Gradient step w_i += learningRate * tdError * f_i, or the optimizer's step along that gradient if
+     * one is set. The bias weight is left where it was initialized, as it always has been for this agent.
+     *
+     * A gradient that is not finite means the weights have diverged (or a feature is broken). It is
+     * rejected before any weight changes, with an IllegalStateException, rather than letting NaN into the
+     * weights where every Q-value computed from them would be NaN as well.
+     *
+     * @param features The features of the (s,a) pair being updated
+     * @param tdError r + gamma * max Q(s',a') - Q(s,a)
+     * @param learningRate Step size
+     */
+    public void update(double[] features, double tdError, double learningRate) {
+        update(features, 0, tdError, learningRate);
+    }
+
+    /**
+     * @param features Buffer holding the feature vector (or eligibility trace) to step along
+     * @param offset Index of the first feature in the buffer
+     */
+    public void update(double[] features, int offset, double tdError, double learningRate) {
+        double gradient = tdError;
+        for (int i = 1; i < weights.length; i++) {
+            gradient += tdError * features[offset + i];
+        }
+        if (Double.isNaN(gradient) || Double.isInfinite(gradient)) {
+            throw new IllegalStateException("The weights have diverged: update " + (version.get() + 1)
+                    + " has TD error " + tdError + ". Lower learningRate=, bound the TD error with tdClip= or standardize the features with normalize=true.");
+        }
+        if (optimizer != null) {
+            optimizer.step(weights, features, offset, tdError, learningRate);
+        } else {
+            double step = learningRate * tdError;
+            for (int i = 1; i < weights.length; i++) {
+                weights[i] += step * features[offset + i];
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Atomically replaces the file with the weights as text, one per line.
+     */
+    public static void writeText(File path, double[] weights) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (double weight : weights) {
+            text.append(String.format("%f\n", weight));
+        }
+        WeightCheckpointer.replaceAtomically(path, ByteBuffer.wrap(text.toString().getBytes()));
+    }
+
+    /**
+     * Reads weights written by writeText.
+     */
+    public static double[] readText(File path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            double[] weights = new double[8];
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (count == weights.length) {
+                    weights = Arrays.copyOf(weights, count * 2);
+                }
+                weights[count++] = Double.parseDouble(line);
+            }
+            return Arrays.copyOf(weights, count);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Trains weights on episodes recorded by RLAgent's record= option, without the simulator.
+ *
+ * Each trace is memory mapped and replayed turn by turn: the recorded units, damage and deaths are fed
+ * into the same unit grid, damage window and feature pipeline the agent uses, and every recorded event
+ * takes the agent's one-step Q-learning update on the features of the footman's last decision. The
+ * next state value is the max over the footman's targets under the current weights, so this is
+ * off-policy and every recorded episode is trained on, exploration and test episodes alike. Traces are
+ * replayed in parallel, one file per task, all updating the same weights without locking as
+ * ParallelTrainer's agents do.
+ *
+ * Usage: OfflineTrainer [key=value ...]
+ *
+ * <pre>
+ * traces=traces              trace files or directories of them, comma separated
+ * passes=1                   times every trace is replayed
+ * features=...               the features to train, FeatureRegistry.DEFAULT_FEATURES by default
+ * gamma=0.9                  discount
+ * learningRate=0.0001        step size, 0.01 by default with an adaptive optimizer
+ * tdClip=100                 bound on the TD error of an update, 0 for none, as the agent's option
+ * optimizer=sgd              sgd, adagrad, rmsprop or adam, with the agent's momentum=, decay= and
+ *                            optimizerEpsilon= options, see Optimizer
+ * normalize=false            standardize the features by the statistics saved with the checkpoint,
+ *                            as the agent's option; needs load=true
+ * damageWindow=3             turns of damage history, as the agent's option
+ * pathRadius=12              reach of the path features' distance fields, as the agent's option
+ * load=false                 start from agent_weights/weights.bin instead of random weights
+ * seed=12345678              seed of the random initial weights
+ * </pre>
+ *
+ * Prints the throughput of each pass and saves the weights to agent_weights/weights.bin and
+ * agent_weights/weights.txt.
+ *
+ * The feature statistics of normalize=true are the ones the agent gathered and saved; replaying does
+ * not add to them, since the traces are replayed in parallel and the agent's normalizer is not safe to
+ * update from several threads. They are used as they are and left in place for the trained weights.
+ */
+public class OfflineTrainer {
+
+    public static void main(String[] args) throws Exception {
+        AgentOptions options = new AgentOptions(args, 0);
+        FeaturePipeline features = FeatureRegistry.compile(options.getString("features", FeatureRegistry.DEFAULT_FEATURES));
+        double gamma = options.getDouble("gamma", 0.9);
+        double learningRate = options.getDouble("learningRate",
+                options.getString("optimizer", "sgd").equalsIgnoreCase("sgd") ? 0.0001 : 0.01);
+        double tdClip = options.getDouble("tdClip", 100);
+        if (tdClip < 0) {
+            throw new IllegalArgumentException("tdClip must not be negative, was " + tdClip);
+        }
+        int damageWindow = options.getInt("damageWindow", DamageWindow.DEFAULT_TURNS);
+        int pathRadius = options.getInt("pathRadius", DistanceFields.DEFAULT_RADIUS);
+        int passes = options.getInt("passes", 1);
+        List<File> traces = traceFiles(options.getString("traces", "traces"));
+        if (traces.isEmpty()) {
+            System.err.println("No episode traces found in " + options.getString("traces", "traces") + ".");
+            System.exit(1);
+        }
+
+        File checkpointFile = new File("agent_weights/weights.bin");
+        LinearQFunction weights = initialWeights(checkpointFile, features, options);
+        Optimizer optimizer = Optimizer.fromOptions(options, features.size());
+        if (optimizer.getKind() != Optimizer.Kind.SGD) {
+            weights.setOptimizer(optimizer);
+        }
+        FeatureNormalizer normalizer = null;
+        if (options.getBoolean("normalize", false)) {
+            File normalizerFile = WeightCheckpointer.normalizerFile(checkpointFile);
+            if (!options.getBoolean("load", false) || !normalizerFile.exists()) {
+                System.err.println("normalize=true needs load=true and the feature statistics saved in " + normalizerFile + ".");
+                System.exit(1);
+            }
+            normalizer = FeatureNormalizer.read(normalizerFile, features.getLayout());
+        }
+
+        System.out.println("Pass  Traces  Episodes  Transitions  Seconds  Transitions/sec");
+        Totals all = new Totals();
+        for (int pass = 1; pass <= passes; pass++) {
+            long start = System.nanoTime();
+            Totals totals = replay(traces, features, weights, normalizer, gamma, learningRate, tdClip,
+                    damageWindow, pathRadius);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            all = all.plus(totals);
+            System.out.println(String.format("%4d  %6d  %8d  %11d  %7.2f  %15.0f",
+                    pass, traces.size(), totals.episodes, totals.transitions, seconds, totals.transitions / seconds));
+        }
+
+        WeightCheckpointer.Checkpoint checkpoint = new WeightCheckpointer.Checkpoint(features.getLayout(),
+                (int) all.episodes, gamma, learningRate, 0, weights.getWeights());
+        WeightCheckpointer.write(checkpointFile, checkpoint);
+        WeightCheckpointer.writeText(new File("agent_weights/weights.txt"), checkpoint);
+        System.out.println("Saved " + weights.size() + " weights to " + checkpointFile + ".");
+    }
+
+    /**
+     * Replays every trace once, in parallel.
+     *
+     * @param normalizer Statistics to standardize the features by, or null
+     * @param tdClip Bound on the TD error of an update, 0 for none
+     */
+    static Totals replay(List<File> traces, final FeaturePipeline features, final LinearQFunction weights,
+                         final FeatureNormalizer normalizer, final double gamma, final double learningRate,
+                         final double tdClip, final int damageWindow, final int pathRadius) throws IOException {
+        try {
+            return traces.parallelStream().map(new Function<File, Totals>() {
+                @Override
+                public Totals apply(File trace) {
+                    try {
+                        return new Replay(features, weights, normalizer, gamma, learningRate, tdClip, damageWindow, pathRadius)
+                                .run(trace);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }).reduce(new Totals(), new BinaryOperator<Totals>() {
+                @Override
+                public Totals apply(Totals a, Totals b) {
+                    return a.plus(b);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * @param paths Trace files or directories, comma separated
+     * @return Every trace file, directories expanded to the .trace files in them
+     */
+    static List<File> traceFiles(String paths) {
+        List<File> files = new ArrayList<File>();
+        for (String path : paths.split(",")) {
+            File file = new File(path.trim());
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children == null) {
+                    continue;
+                }
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && child.getName().endsWith(".trace")) {
+                        files.add(child);
+                    }
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static LinearQFunction initialWeights(File checkpointFile, FeaturePipeline features, AgentOptions options) {
+        if (options.getBoolean("load", false) && checkpointFile.exists()) {
+            try {
+                WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.read(checkpointFile);
+                if (checkpoint.layout.equals(features.getLayout())) {
+                    return new LinearQFunction(checkpoint.weights);
+                }
+                System.err.println("Checkpoint features " + checkpoint.layout + " do not match " + features.getLayout() + ". Starting from random weights.");
+            } catch (IOException ex) {
+                System.err.println("Failed to load weight checkpoint. Reason: " + ex.getMessage());
+            }
+        }
+        return LinearQFunction.random(features.size(), new Random(options.getLong("seed", 12345678)));
+    }
+
+    /**
+     * Counts over the traces of one pass.
+     */
+    static class Totals {
+        long episodes;
+        long transitions;
+
+        Totals plus(Totals other) {
+            Totals sum = new Totals();
+            sum.episodes = episodes + other.episodes;
+            sum.transitions = transitions + other.transitions;
+            return sum;
+        }
+    }
+
+    /**
+     * Replays a single trace. Owns everything it computes features with, so traces can be replayed
+     * on different threads.
+     */
+    static class Replay {
+
+        private final FeaturePipeline features;
+        private final LinearQFunction weights;
+        private final FeatureNormalizer normalizer;
+        private final double gamma;
+        private final double learningRate;
+        private final double tdClip;
+        private final int damageWindow;
+        private final int numFeatures;
+
+        private final FeatureContext context = new FeatureContext();
+        private final UnitGrid grid = new UnitGrid();
+        private int playernum;
+
+        /** Features of each footman's last decision, indexed by unit ID. */
+        private double[] decisionFeatures = new double[0];
+        private boolean[] hasDecision = new boolean[0];
+        /** Features and Q-values of every enemy a footman could attack next. */
+        private double[] candidates = new double[0];
+        private double[] candidateQ = new double[0];
+
+        Replay(FeaturePipeline features, LinearQFunction weights, FeatureNormalizer normalizer, double gamma,
+               double learningRate, double tdClip, int damageWindow, int pathRadius) {
+            this.features = features;
+            this.weights = weights;
+            this.normalizer = normalizer;
+            this.gamma = gamma;
+            this.learningRate = learningRate;
+            this.tdClip = tdClip;
+            this.damageWindow = damageWindow;
+            numFeatures = features.size();
+            if ((features.getInputs() & FeatureContext.PATHS) != 0) {
+                grid.trackPaths(pathRadius);
+            }
+        }
+
+        Totals run(File file) throws IOException {
+            TraceReader trace = new TraceReader(file);
+            playernum = trace.getPlayernum();
+            DamageWindow damage = new DamageWindow(damageWindow, playernum);
+            Totals totals = new Totals();
+            byte type;
+            while ((type = trace.next()) != TraceReader.END_OF_TRACE) {
+                if (type == TraceRecorder.EPISODE) {
+                    damage.clear();
+                    grid.invalidate();
+                    Arrays.fill(hasDecision, false);
+                } else if (type == TraceRecorder.TURN) {
+                    totals.transitions += turn(trace, damage);
+                } else {
+                    totals.episodes++;
+                }
+            }
+            if (trace.isTruncated()) {
+                System.err.println(file + " ends in a record that was cut short, ignoring it.");
+            }
+            return totals;
+        }
+
+        /**
+         * Takes the updates of the turn's events, then remembers the features of its new decisions.
+         *
+         * @return The number of updates
+         */
+        private int turn(TraceReader trace, DamageWindow damage) {
+            if (trace.turn > 0) {
+                damage.record(trace.turn - 1, trace.numDamage, trace.damageAttackers, trace.damageDefenders,
+                        trace.damage, trace.damageDefenderPlayers);
+            }
+            if (!trace.hasUnits) {
+                return 0;
+            }
+            UnitSnapshot units = trace.units;
+            grid.update(units, playernum);
+            context.beginTurn(units, playernum, units.size() - units.count(playernum), grid, damage,
+                    features.getInputs());
+
+            int updates = 0;
+            for (int i = 0; i < trace.numRewards; i++) {
+                int footmanId = trace.rewardIds[i];
+                if (footmanId >= hasDecision.length || !hasDecision[footmanId]) {
+                    continue;
+                }
+                int offset = footmanId * numFeatures;
+                double qVal = weights.value(decisionFeatures, offset);
+                double predictedQ = units.contains(footmanId) ? maxQValue(units, footmanId) : 0;
+                double tdError = trace.rewards[i] + gamma * predictedQ - qVal;
+                if (tdClip > 0) {
+                    tdError = Math.max(-tdClip, Math.min(tdClip, tdError));
+                }
+                weights.update(decisionFeatures, offset, tdError, learningRate);
+                updates++;
+                if (!units.contains(footmanId)) {
+                    hasDecision[footmanId] = false;
+                }
+            }
+            for (int i = 0; i < trace.numCommands; i++) {
+                if (!trace.commandDecisions[i] || trace.commandTargets[i] < 0) {
+                    continue;
+                }
+                int footmanId = trace.commandIds[i];
+                ensureUnit(footmanId);
+                features.evaluate(context, footmanId, trace.commandTargets[i], decisionFeatures, footmanId * numFeatures);
+                if (normalizer != null) {
+                    normalizer.normalize(decisionFeatures, footmanId * numFeatures, 1);
+                }
+                hasDecision[footmanId] = true;
+            }
+            return updates;
+        }
+
+        /**
+         * The agent's maxQValue, over every living enemy in the snapshot, scored in one batch.
+         */
+        private double maxQValue(UnitSnapshot units, int footmanId) {
+            if (candidateQ.length < units.size()) {
+                candidateQ = new double[units.size()];
+                candidates = new double[units.size() * numFeatures];
+            }
+            int numEnemies = 0;
+            for (int i = 0; i < units.size(); i++) {
+                if (units.owner(i) != playernum) {
+                    features.evaluate(context, footmanId, units.id(i), candidates, numEnemies++ * numFeatures);
+                }
+            }
+            if (normalizer != null) {
+                normalizer.normalize(candidates, 0, numEnemies);
+            }
+            weights.values(candidates, 0, numEnemies, candidateQ, 0);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < numEnemies; i++) {
+                max = Math.max(max, candidateQ[i]);
+            }
+            return max == Double.NEGATIVE_INFINITY ? 0 : max;
+        }
+
+        private void ensureUnit(int unitId) {
+            if (unitId < hasDecision.length) {
+                return;
+            }
+            int length = Math.max(unitId + 1, hasDecision.length * 2);
+            hasDecision = Arrays.copyOf(hasDecision, length);
+            decisionFeatures = Arrays.copyOf(decisionFeatures, length * numFeatures);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Turns the TD gradient of a weight update into a step for each weight, for LinearQFunction.update.
+ *
+ * <ul>
+ * <li>sgd: the plain step learningRate * g_i, as the agent has always taken.</li>
+ * <li>adagrad: each weight's step is divided by the root of the sum of its squared gradients so far,
+ * so weights of large or frequently active features take smaller steps.</li>
+ * <li>rmsprop: as adagrad, over an exponential average of the squared gradients (decay=) instead of
+ * their sum, so steps do not shrink to nothing over a long run.</li>
+ * <li>adam: rmsprop with an exponential average of the gradients themselves (momentum=) as well, both
+ * bias corrected for the first updates.</li>
+ * </ul>
+ *
+ * With the adaptive kinds a weight moves about learningRate per update whatever its feature's scale,
+ * so a learning rate suited to them is much larger than sgd's. The bias weight is never stepped, as in
+ * the plain update. The state is one or two doubles per weight; it is updated without locking like the
+ * weights themselves when they are shared, and is not saved with them, so a loaded agent starts its
+ * averages afresh.
+ */
+class Optimizer {
+
+    enum Kind {SGD, ADAGRAD, RMSPROP, ADAM}
+
+    private final Kind kind;
+    private final double momentum;
+    private final double decay;
+    private final double epsilon;
+
+    /** Running first and second moments of each weight's gradient, null when the kind has none. */
+    private final double[] first;
+    private final double[] second;
+    private long steps;
+
+    /**
+     * @param size Number of weights
+     * @param momentum Decay of adam's gradient average
+     * @param decay Decay of rmsprop's and adam's squared gradient average
+     * @param epsilon Added to the root of the squared gradients so an unused weight's step is finite
+     */
+    Optimizer(Kind kind, int size, double momentum, double decay, double epsilon) {
+        if (momentum < 0 || momentum >= 1 || decay < 0 || decay >= 1) {
+            throw new IllegalArgumentException("Optimizer momentum and decay must be in [0, 1), were " + momentum + " and " + decay);
+        }
+        if (epsilon <= 0) {
+            throw new IllegalArgumentException("Optimizer epsilon must be positive, was " + epsilon);
+        }
+        this.kind = kind;
+        this.momentum = momentum;
+        this.decay = decay;
+        this.epsilon = epsilon;
+        first = kind == Kind.ADAM ? new double[size] : null;
+        second = kind == Kind.SGD ? null : new double[size];
+    }
+
+    /**
+     * Creates the optimizer chosen by the optimizer= option (sgd by default), with its momentum=, decay=
+     * and optimizerEpsilon= options.
+     */
+    static Optimizer fromOptions(AgentOptions options, int size) {
+        String name = options.getString("optimizer", "sgd");
+        Kind kind;
+        try {
+            kind = Kind.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown optimizer \"" + name + "\", expected sgd, adagrad, rmsprop or adam.");
+        }
+        return new Optimizer(kind, size,
+                options.getDouble("momentum", 0.9),
+                options.getDouble("decay", kind == Kind.ADAM ? 0.999 : 0.9),
+                options.getDouble("optimizerEpsilon", 1e-8));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Steps the weights along the gradient tdError * f_i.
+     *
+     * @param features Buffer holding the feature vector (or eligibility trace) to step along
+     * @param offset Index of the first feature in the buffer
+     */
+    public void step(double[] weights, double[] features, int offset, double tdError, double learningRate) {
+        switch (kind) {
+            case SGD: {
+                double step = learningRate * tdError;
+                for (int i = 1; i < weights.length; i++) {
+                    weights[i] += step * features[offset + i];
+                }
+                break;
+            }
+            case ADAGRAD:
+                for (int i = 1; i < weights.length; i++) {
+                    double g = tdError * features[offset + i];
+                    second[i] += g * g;
+                    weights[i] += learningRate * g / (Math.sqrt(second[i]) + epsilon);
+                }
+                break;
+            case RMSPROP:
+                for (int i = 1; i < weights.length; i++) {
+                    double g = tdError * features[offset + i];
+                    second[i] = decay * second[i] + (1 - decay) * g * g;
+                    weights[i] += learningRate * g / (Math.sqrt(second[i]) + epsilon);
+                }
+                break;
+            case ADAM: {
+                long t = ++steps;
+                double firstCorrection = 1 - Math.pow(momentum, t);
+                double secondCorrection = 1 - Math.pow(decay, t);
+                for (int i = 1; i < weights.length; i++) {
+                    double g = tdError * features[offset + i];
+                    first[i] = momentum * first[i] + (1 - momentum) * g;
+                    second[i] = decay * second[i] + (1 - decay) * g * g;
+                    weights[i] += learningRate * (first[i] / firstCorrection)
+                            / (Math.sqrt(second[i] / secondCorrection) + epsilon);
+                }
+                break;
+            }
+        }
+    }
+}
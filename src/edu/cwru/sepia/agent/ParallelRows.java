@@ -0,0 +1,67 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs a body over a range of Q-table rows on a fork/join pool, splitting the range in halves until
+ * the pieces are at most grain rows.
+ *
+ * Each piece must only write to its own rows, so the result does not depend on how the range was
+ * split or which worker ran which piece. The counts the pieces return are summed, which is exact, so
+ * merging is deterministic too.
+ */
+class ParallelRows {
+
+    interface Body {
+        /**
+         * Processes rows [from, to).
+         *
+         * @return A count to add to the total, e.g. of dead unit features
+         */
+        long run(int from, int to);
+    }
+
+    /**
+     * @return The sum of the counts returned by the body
+     */
+    static long forEach(ForkJoinPool pool, int rows, int grain, Body body) {
+        return pool.invoke(new Piece(body, 0, rows, Math.max(1, grain)));
+    }
+
+    /**
+     * @return A grain giving a few pieces per worker, so an unlucky piece does not hold up the turn
+     */
+    static int grain(ForkJoinPool pool, int rows) {
+        return Math.max(1, rows / (4 * pool.getParallelism()));
+    }
+
+    private static class Piece extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Piece(Body body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= grain) {
+                return body.run(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            Piece left = new Piece(body, from, middle, grain);
+            left.fork();
+            long right = new Piece(body, middle, to, grain).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.BestEffortModel;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Trains one set of weights on several SEPIA environments at once.
+ *
+ * Every worker thread owns a BestEffortModel environment with its own RLAgent/combatAgent pair. The
+ * RLAgents all share a single LinearQFunction, so every weight update from any worker is seen by
+ * the others on their next decision. Run without a visual agent.
+ *
+ * Usage: ParallelTrainer [map] [episodes per worker] [max workers]
+ *
+ * The launcher trains from scratch with 1, 2, 4, ... up to max workers (default: all cores) and
+ * prints the throughput and test episode win rate of each run, then saves the weights of the
+ * largest run to agent_weights/weights.bin and agent_weights/weights.txt.
+ */
+public class ParallelTrainer {
+
+    private static final int ENEMY_PLAYERNUM = RLAgent.ENEMY_PLAYERNUM;
+
+    /**
+     * Agent options turning stalemate detection on, for agents playing in newEnvironment's environments,
+     * which end the episode when the agent declares one. Detection is off by default, since SEPIA's own
+     * runner does not.
+     */
+    static final List<String> STALEMATE_OPTIONS = Collections.unmodifiableList(Arrays.asList(
+            "stalemateTurns=" + StalemateDetector.DEFAULT_IDLE_TURNS,
+            "stalemateFailures=" + StalemateDetector.DEFAULT_FAILURES));
+
+    public static void main(String[] args) throws Exception {
+        exitOnAgentFailure();
+        File map = new File(args.length >= 1 ? args[0] : "data/rl_5fv5f.xml");
+        int episodesPerWorker = args.length >= 2 ? Integer.parseInt(args[1]) : 30;
+        int maxWorkers = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int numFeatures = FeatureRegistry.compile(FeatureRegistry.DEFAULT_FEATURES).size();
+
+        // warm up the JIT so the single worker run is not penalized for it
+        train(map, 1, episodesPerWorker, LinearQFunction.random(numFeatures, new Random()), 0);
+
+        System.out.println("Workers  Episodes  Seconds  Episodes/sec  Speedup  Test wins");
+        double serialRate = 0;
+        LinearQFunction weights = null;
+        Result last = null;
+        for (int workers = 1; workers <= maxWorkers; workers = nextWorkerCount(workers, maxWorkers)) {
+            weights = LinearQFunction.random(numFeatures, new Random(12345678));
+            Result result = train(map, workers, episodesPerWorker, weights, 12345678);
+            last = result;
+            double rate = result.episodes / result.seconds;
+            if (workers == 1) {
+                serialRate = rate;
+            }
+            System.out.println(String.format("%7d  %8d  %7.1f  %12.2f  %7.2f  %d/%d",
+                    workers, result.episodes, result.seconds, rate, rate / serialRate,
+                    result.testWins, result.testEpisodes));
+        }
+
+        RLAgent settings = last.agent;
+        WeightCheckpointer.Checkpoint checkpoint = new WeightCheckpointer.Checkpoint(settings.getFeatureLayout(),
+                last.episodes, settings.gamma, settings.learningRate, settings.epsilon, weights.getWeights());
+        WeightCheckpointer.write(new File("agent_weights/weights.bin"), checkpoint);
+        WeightCheckpointer.writeText(new File("agent_weights/weights.txt"), checkpoint);
+        // the environments' agent threads are not daemons and never finish on their own
+        System.exit(0);
+    }
+
+    private static int nextWorkerCount(int workers, int maxWorkers) {
+        if (workers == maxWorkers) {
+            return maxWorkers + 1;
+        }
+        return Math.min(workers * 2, maxWorkers);
+    }
+
+    /**
+     * Totals over every worker of one training run.
+     */
+    static class Result {
+        int episodes;
+        int testEpisodes;
+        int testWins;
+        double seconds;
+        /** One of the workers' agents, for its settings. */
+        RLAgent agent;
+    }
+
+    /**
+     * Runs episodesPerWorker episodes on each of the given number of environments in parallel,
+     * all updating the same weights.
+     *
+     * @param map SEPIA state XML to play on
+     * @param seed Base seed. Worker i seeds its agent and model with seed + i.
+     */
+    static Result train(final File map, int workers, final int episodesPerWorker,
+                        final LinearQFunction weights, final long seed) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<RLAgent>> futures = new ArrayList<Future<RLAgent>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < workers; i++) {
+            final long workerSeed = seed + i;
+            futures.add(pool.submit(new Callable<RLAgent>() {
+                @Override
+                public RLAgent call() throws Exception {
+                    List<String> args = new ArrayList<String>();
+                    args.add(Integer.toString(episodesPerWorker));
+                    args.add("false");
+                    args.addAll(STALEMATE_OPTIONS);
+                    RLAgent agent = new RLAgent(0, args.toArray(new String[args.size()]), weights, workerSeed);
+                    Environment environment = newEnvironment(loadMap(map), agent, (int) workerSeed);
+                    for (int episode = 0; episode < episodesPerWorker; episode++) {
+                        environment.runEpisode();
+                    }
+                    return agent;
+                }
+            }));
+        }
+
+        Result result = new Result();
+        try {
+            for (Future<RLAgent> future : futures) {
+                RLAgent agent = future.get();
+                result.agent = agent;
+                result.episodes += episodesPerWorker;
+                result.testEpisodes += agent.getTestEpisodes();
+                result.testWins += agent.getTestWins();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        return result;
+    }
+
+    static XmlState loadMap(File map) throws IOException {
+        try {
+            return (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(map);
+        } catch (JAXBException ex) {
+            throw new IOException(map + " is not a valid map file.", ex);
+        }
+    }
+
+    /**
+     * Builds a headless environment with the given agent as player 0 and combatAgent as the enemy,
+     * using the model parameters of the shipped configurations. The episode also ends as soon as the
+     * agent declares a stalemate, see RLAgent.isStalemate.
+     */
+    static Environment newEnvironment(XmlState map, RLAgent agent, int seed) throws Exception {
+        StateCreator stateCreator = new XmlStateCreator(map);
+        Configuration configuration = new Configuration();
+        configuration.put("environment.model.Conquest", true);
+        configuration.put("environment.model.Midas", false);
+        configuration.put("environment.model.ManifestDestiny", false);
+        configuration.put("environment.model.TimeLimit", 100000);
+        BestEffortModel model = new StalemateModel(stateCreator.createState(), seed, stateCreator, configuration, agent);
+        Agent[] agents = new Agent[]{agent, newCombatAgent()};
+        return new Environment(agents, model, seed);
+    }
+
+    /**
+     * SEPIA runs every agent on a thread of its own and waits for its actions without a timeout, so an
+     * agent that throws, e.g. on diverged weights, would leave the trainer hanging after the stack trace.
+     * The trainers call this first so such a failure ends the process instead.
+     */
+    static void exitOnAgentFailure() {
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                System.err.println("Failed to train, " + thread.getName() + " stopped. Reason: " + ex.getMessage());
+                ex.printStackTrace();
+                System.exit(1);
+            }
+        });
+    }
+
+    /**
+     * BestEffortModel whose episode also ends when the agent declares a stalemate.
+     */
+    private static class StalemateModel extends BestEffortModel {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RLAgent agent;
+
+        StalemateModel(State initState, int seed, StateCreator restartTactic, Configuration configuration, RLAgent agent) {
+            super(initState, seed, restartTactic, configuration);
+            this.agent = agent;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return super.isTerminated() || agent.isStalemate();
+        }
+    }
+
+    /**
+     * combatAgent lives in the default package, so it can only be created reflectively. Its
+     * (int, String[]) constructor wants more arguments than the configuration files give it, so
+     * SEPIA ends up using the (int) one, and so do we.
+     */
+    static Agent newCombatAgent() throws ReflectiveOperationException {
+        return (Agent) Class.forName("combatAgent")
+                .getConstructor(int.class)
+                .newInstance(ENEMY_PLAYERNUM);
+    }
+}
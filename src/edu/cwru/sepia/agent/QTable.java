@@ -0,0 +1,255 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Attacker x defender table of feature vectors and Q-values for a single turn. Feature vectors are
+ * stored row-major in one primitive array and the buffers are reused from turn to turn, so filling
+ * the table does not allocate unless the armies grow.
+ *
+ * The features of every (footman, enemy) pair only depend on the state of the turn, so they are
+ * calculated once when the table is reset and shared by every footman that needs to pick a target
+ * that turn. The Q-values of a row are recalculated lazily whenever the weights have changed since
+ * the row was last scored, which only happens during exploration episodes.
+ *
+ * With tile coding on, every pair also gets a fixed number of tiles (see TileCoder), stored the same
+ * way as the feature vectors.
+ */
+class QTable {
+
+    private final int numFeatures;
+    private final int tilesPerPair;
+
+    private int turn = -1;
+
+    private int[] attackers = new int[0];
+    private int[] defenders = new int[0];
+    private int numAttackers;
+    private int numDefenders;
+
+    /** Unit ID to row/column index, -1 if the unit is not in the table. */
+    private int[] rowOf = new int[0];
+    private int[] columnOf = new int[0];
+
+    private double[] features = new double[0];
+    private long[] tiles = new long[0];
+    private double[] qValues = new double[0];
+    private long[] rowVersion = new long[0];
+
+    /**
+     * @param numFeatures Length of each feature vector
+     */
+    public QTable(int numFeatures) {
+        this(numFeatures, 0);
+    }
+
+    /**
+     * @param numFeatures Length of each feature vector
+     * @param tilesPerPair Number of tiles of each pair, 0 without tile coding
+     */
+    public QTable(int numFeatures, int tilesPerPair) {
+        this.numFeatures = numFeatures;
+        this.tilesPerPair = tilesPerPair;
+    }
+
+    /**
+     * @param turn The turn number the table is being checked for
+     * @return True if the table was filled on the given turn and has not been invalidated since
+     */
+    public boolean isValidFor(int turn) {
+        return this.turn == turn;
+    }
+
+    /**
+     * Forces the table to be refilled the next time it is used, e.g. after a unit died.
+     */
+    public void invalidate() {
+        turn = -1;
+    }
+
+    /**
+     * Clears the table and sets up the rows and columns for a new turn. Feature vectors still need
+     * to be written into getFeatures() at featureOffset(row, column).
+     *
+     * @param turn The turn number this table is valid for
+     * @param attackerIds Your living footmen
+     * @param defenderIds The living enemy footmen
+     */
+    public void reset(int turn, Collection<Integer> attackerIds, Collection<Integer> defenderIds) {
+        clearIndex(rowOf, attackers, numAttackers);
+        clearIndex(columnOf, defenders, numDefenders);
+
+        numAttackers = attackerIds.size();
+        numDefenders = defenderIds.size();
+        if (attackers.length < numAttackers) {
+            attackers = new int[numAttackers];
+        }
+        if (defenders.length < numDefenders) {
+            defenders = new int[numDefenders];
+        }
+
+        int i = 0;
+        for (Integer id : attackerIds) {
+            attackers[i] = id;
+            rowOf = index(rowOf, id, i++);
+        }
+        i = 0;
+        for (Integer id : defenderIds) {
+            defenders[i] = id;
+            columnOf = index(columnOf, id, i++);
+        }
+
+        int cells = numAttackers * numDefenders;
+        if (qValues.length < cells) {
+            features = new double[cells * numFeatures];
+            qValues = new double[cells];
+            tiles = new long[cells * tilesPerPair];
+        }
+        if (rowVersion.length < numAttackers) {
+            rowVersion = new long[numAttackers];
+        }
+        Arrays.fill(rowVersion, 0, numAttackers, -1);
+        this.turn = turn;
+    }
+
+    public int getNumAttackers() {
+        return numAttackers;
+    }
+
+    public int getNumDefenders() {
+        return numDefenders;
+    }
+
+    public int getAttacker(int row) {
+        return attackers[row];
+    }
+
+    public int getDefender(int column) {
+        return defenders[column];
+    }
+
+    /**
+     * @return The row of the given footman, or -1 if it is not in the table
+     */
+    public int rowOf(int attackerId) {
+        return attackerId >= 0 && attackerId < rowOf.length ? rowOf[attackerId] : -1;
+    }
+
+    /**
+     * @return The column of the given enemy, or -1 if it is not in the table
+     */
+    public int columnOf(int defenderId) {
+        return defenderId >= 0 && defenderId < columnOf.length ? columnOf[defenderId] : -1;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    /**
+     * @return The backing array of all feature vectors, row-major by (attacker, defender)
+     */
+    public double[] getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return Index in getFeatures() of the first feature of the given pair
+     */
+    public int featureOffset(int row, int column) {
+        return (row * numDefenders + column) * numFeatures;
+    }
+
+    public int getTilesPerPair() {
+        return tilesPerPair;
+    }
+
+    /**
+     * @return The backing array of all tiles, row-major by (attacker, defender)
+     */
+    public long[] getTiles() {
+        return tiles;
+    }
+
+    /**
+     * @return Index in getTiles() of the first tile of the given pair
+     */
+    public int tileOffset(int row, int column) {
+        return (row * numDefenders + column) * tilesPerPair;
+    }
+
+    /**
+     * @return The backing array of all Q-values, row-major by (attacker, defender)
+     */
+    public double[] getQValues() {
+        return qValues;
+    }
+
+    /**
+     * @return Index in getQValues() of the Q-value of the row's first pair
+     */
+    public int qValueOffset(int row) {
+        return row * numDefenders;
+    }
+
+    public double getQValue(int row, int column) {
+        return qValues[row * numDefenders + column];
+    }
+
+    public void setQValue(int row, int column, double q) {
+        qValues[row * numDefenders + column] = q;
+    }
+
+    /**
+     * @return True if the Q-values in the row were calculated with the given version of the weights
+     */
+    public boolean isRowCurrent(int row, long weightsVersion) {
+        return rowVersion[row] == weightsVersion;
+    }
+
+    public void markRowCurrent(int row, long weightsVersion) {
+        rowVersion[row] = weightsVersion;
+    }
+
+    /**
+     * @return The column with the highest Q-value in the row, or -1 if there are no defenders.
+     * Ties go to the first column, matching the order the defenders were given in. NaN Q-values
+     * (diverged weights) lose to everything else, and the first column is returned if they are all
+     * NaN, so a footman always gets a target while there is one.
+     */
+    public int maxColumn(int row) {
+        if (numDefenders == 0) {
+            return -1;
+        }
+        int offset = row * numDefenders;
+        int best = 0;
+        double bestQ = qValues[offset];
+        for (int c = 1; c < numDefenders; c++) {
+            double q = qValues[offset + c];
+            if (q > bestQ || (Double.isNaN(bestQ) && !Double.isNaN(q))) {
+                bestQ = q;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static void clearIndex(int[] index, int[] ids, int count) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= 0 && ids[i] < index.length) {
+                index[ids[i]] = -1;
+            }
+        }
+    }
+
+    private static int[] index(int[] index, int id, int value) {
+        if (id >= index.length) {
+            int oldLength = index.length;
+            index = Arrays.copyOf(index, Math.max(id + 1, oldLength * 2));
+            Arrays.fill(index, oldLength, index.length, -1);
+        }
+        index[id] = value;
+        return index;
+    }
+}
@@ -16,6 +16,7 @@ import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 
 public class RLAgent extends Agent {
 
@@ -37,39 +38,63 @@ public class RLAgent extends Agent {
      * to the enemy agent. We will make sure it is set to the proper number when testing your code.
      */
     public static final int ENEMY_PLAYERNUM = 1;
+    
+    /**
+     * What middleStep returns on a quiet turn, see isQuietTurn. Shared and never modified.
+     */
+    private static final Map<Integer, Action> NO_ACTIONS = Collections.emptyMap();
 
     /**
-     * Set this to whatever size your feature vector is.
+     * The features, chosen with the features= option (see FeatureRegistry). Their layout is saved
+     * with the weights so weights are only loaded into an agent computing the same features.
      */
-    public static final int NUM_FEATURES = 2;
+    private final FeaturePipeline features;
+    private final FeatureContext featureContext = new FeatureContext();
 
     /** Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
      */
-    public final Random random = new Random(12345678);
+    public final Random random;
 
     /**
      * Your Q-function weights.
      */
-    public Double[] weights;
+    private LinearQFunction qFunction;
 
     /**
      * These variables are set for you according to the assignment definition. You can change them,
      * but it is not recommended. If you do change them please let us know and explain your reasoning for
      * changing them.
+     *
+     * They default to the assignment's values and can be overridden with the gamma=, learningRate= and
+     * epsilon= options, e.g. by HyperparameterSweep. With an adaptive optimizer= the learning rate is
+     * about how far each weight moves per update and defaults to 0.01 instead, see Optimizer.
      */
-    public final double gamma = 0.9;
-    public final double learningRate = .0001;
-    public /*final*/ double epsilon = 0.02;
+    public final double gamma;
+    public final double learningRate;
+    public /*final*/ double epsilon;
     
-    private List<Double> rewardsFromCurrentEpisode;
-    private List<Double> averageRewards;
-    private List<Double> averageRewardsOverFiveEpisodes;
+    /**
+     * The episode schedule: every cycle plays testBlock test episodes followed by exploreBlock learning
+     * episodes, 5 and 10 by default. Set with the testEpisodes= and exploreEpisodes= options.
+     */
+    private final int testBlock;
+    private final int exploreBlock;
+    
+    /**
+     * The rewards of every event, summed per episode, averaged over each block of test episodes into
+     * the learning curve, in fixed memory. The curve keeps rewardCurve points (default
+     * RewardStats.DEFAULT_CURVE_POINTS) before it starts halving its resolution.
+     */
+    private final RewardStats rewardStats;
     private boolean lastExploit = false;
     
-    public Map <Integer, Double[] > previousFeatures;
+    public Map <Integer, double[] > previousFeatures;
     public Map<Integer, Double> cumulativeReward;
-    public Map<Integer, Set<Integer>> beingAttackedBy;
+    /**
+     * Which enemy each footman is attacking, and which footmen are attacking each enemy.
+     */
+    final TargetAssignments targets = new TargetAssignments();
     
     public int episodeNum = 0;
     public boolean explorationEpisode;
@@ -80,13 +105,244 @@ public class RLAgent extends Agent {
     private Map<Integer, attackedByStatus> attackedBy;
     private int winCount = 0;
     
+    /**
+     * Running totals over every test (non-exploration) episode, read by the training launchers.
+     */
+    private int testEpisodes = 0;
+    private int testWins = 0;
+    
+    /**
+     * False when the weights are shared with other agents, in which case whoever owns them
+     * is responsible for saving them.
+     */
+    private final boolean ownsWeights;
+    
+    /**
+     * Set with save=false to never checkpoint the weights, e.g. for runs that only want the learning curve.
+     */
+    private final boolean saveWeights;
+    
+    /**
+     * Settings passed as key=value agent arguments, see AgentOptions.
+     */
+    private final AgentOptions options;
+    
+    /**
+     * Set with quiet=true to keep the per-episode console output (win counts, test data) quiet
+     * during headless training runs. Errors are still reported.
+     */
+    private final boolean quiet;
+    
+    /**
+     * Binary weight checkpoints in agent_weights/weights.bin, written in the background every
+     * checkpointEvery episodes (default 1). Unless textWeights=false each checkpoint is also exported
+     * to agent_weights/weights.txt. Created on the first terminalStep of an agent that owns its weights.
+     */
+    private WeightCheckpointer checkpointer;
+    
+    /**
+     * Total number of turns played over every episode so far.
+     */
+    private long turnsPlayed = 0;
+    
+    /**
+     * Phase timings and counters, see AgentMetrics for the options that export them.
+     */
+    final AgentMetrics metrics;
+    
+    /**
+     * Experience replay, enabled with replay=capacity. When it is on, events store their transition
+     * here instead of taking a gradient step right away, and terminalStep trains on mini-batches of
+     * replayBatch transitions until each new transition has been used replayRatio times on average.
+     */
+    private ReplayBuffer replayBuffer;
+    private int replayBatch;
+    private double replayRatio;
+    private int newTransitions = 0;
+    
+    /**
+     * TD(lambda), enabled with lambda=value in (0, 1]. Each event then steps the weights along the
+     * footman's eligibility trace instead of only the features of its last decision, so kill and
+     * death rewards also reach the decisions that led up to them. Traces decay by gamma * lambda per
+     * event and are dropped when the footman dies or the episode ends. Null with the default of 0,
+     * which is the one-step update.
+     */
+    private EligibilityTraces traces;
+    private double lambda;
+    
+    /**
+     * Bound on the TD error of any update, tdClip= (0 for none). The raw distance feature is in the
+     * thousands, so without it the default learning rate diverges within the first episode.
+     */
+    private double tdClip;
+    
+    /**
+     * Features and Q-values of every (footman, enemy) pair for the current turn. Rows are marked with
+     * the version of the weights they were scored with, see LinearQFunction.getVersion, so the table knows
+     * when its Q-values are stale, also when another agent sharing the weights updated them.
+     */
+    private final QTable qTable;
+    private final double[] scratchFeatures;
+    
+    /**
+     * Position, health and owner of every living unit, captured from the state once per turn. Features
+     * and the unit grid read units from here rather than through the state's UnitViews.
+     */
+    private final UnitSnapshot units = new UnitSnapshot();
+    
+    /**
+     * Positions of every living footman, used by the neighbourhood features. With a path feature
+     * enabled it also keeps the walking distance to every enemy, pathRadius (default
+     * DistanceFields.DEFAULT_RADIUS) steps out from it.
+     */
+    private final UnitGrid unitGrid = new UnitGrid();
+    
+    /**
+     * Damage dealt over the last damageWindow turns (default DamageWindow.DEFAULT_TURNS), read from
+     * the history once per turn and shared by the rewards and the damage history features.
+     */
+    private final DamageWindow damageWindow;
+    
+    /**
+     * How idle footmen pick their targets. With assign=joint (the default) every footman that needs
+     * a target in a turn is assigned at once by an AssignmentSolver over the turn's Q-table, with at most
+     * targetCapacity footmen per enemy counting those already attacking it, so they stop all piling
+     * onto the same enemy. With assign=greedy each footman picks its best enemy on its own. Exploration
+     * is epsilon-greedy either way.
+     */
+    private final boolean jointAssignment;
+    private final int targetCapacity;
+    private final AssignmentSolver assignmentSolver = new AssignmentSolver();
+    private int[] jointFootmen = new int[0];
+    
+    /**
+     * Parallel decisions, enabled with parallel=true. Once at least parallelThreshold units (ours and
+     * the enemy's) are alive, the Q-table features are filled and the rows of the footmen picking a
+     * target are scored on the common fork/join pool, split by row. Exploration draws and choices
+     * stay on the agent thread, so a fixed seed gives the same run either way.
+     */
+    private final boolean parallel;
+    private final int parallelThreshold;
+    private int[] rowsToScore = new int[0];
+    
+    /**
+     * Sparse tile-coded features, enabled with tilings=N. Every pair is also encoded into the tiles of a
+     * TileCoder with N tilings per group, and its Q-value is the dense features' value plus the weights of
+     * its active tiles in sparseQ. Tile weights are trained with tileRate (default 0.1) split over the
+     * active tiles and checkpointed to agent_weights/weights.tiles. Null with the default of 0.
+     */
+    private TileCoder tileCoder;
+    private SparseQFunction sparseQ;
+    private double tileRate;
+    private long[] scratchTiles;
+    private final Map<Integer, long[]> previousTiles = new HashMap<Integer, long[]>();
+    
+    /**
+     * The FeatureContext inputs of the features and the tiles together.
+     */
+    private final int featureInputs;
+    
+    /**
+     * Episode trace recording, enabled with record=directory. Every episode's units, damage, deaths,
+     * rewards and commands are appended to a new trace file in the directory, for OfflineTrainer.
+     */
+    private TraceRecorder recorder;
+    
+    /**
+     * Ends episodes that have stopped making progress, see StalemateDetector. The thresholds are the
+     * stalemateTurns= and stalemateFailures= options, 0 turning either off, and both are off by default.
+     * On a stalemate the agent stops issuing commands and isStalemate() turns true, which the models of
+     * ParallelTrainer.newEnvironment treat as the end of the episode; the launchers playing in those
+     * turn detection on with ParallelTrainer.STALEMATE_OPTIONS. Every living footman then gets
+     * stalemateReward (default -50) as its final, terminal reward, and the episode counts as not won.
+     * SEPIA's own runner cannot be told to end an episode, so there the agent goes back to playing on the
+     * next turn, but the declaring turn's feedback is lost and footmen whose attacks failed on it may stay
+     * idle: leave the thresholds off under that runner.
+     */
+    private final StalemateDetector stalemates;
+    private final double stalemateReward;
+    
+    /**
+     * Feature normalization, enabled with normalize=true. Every filled Q-table is standardized by the
+     * running mean and variance of each feature before it is scored, so the weights see features of
+     * about unit scale. The statistics only take in the features of exploration episodes, so test
+     * episodes are played with fixed ones, and are checkpointed to agent_weights/weights.norm with the
+     * weights. Null by default.
+     */
+    private FeatureNormalizer normalizer;
+    
 
     public RLAgent(int playernum, String[] args) {
+        this(playernum, args, null, 12345678);
+    }
+
+    /**
+     * Creates an agent for one of several environments trained at the same time. Every agent
+     * given the same Q-function updates it in place without locking (Hogwild style); a lost
+     * update now and then costs less than the contention of synchronizing every step.
+     *
+     * @param sharedQFunction Weights shared with other agents, or null to load or create them as usual
+     * @param seed Seed for this agent's exploration
+     */
+    RLAgent(int playernum, String[] args, LinearQFunction sharedQFunction, long seed) {
         super(playernum);
+        random = new Random(seed);
+        ownsWeights = sharedQFunction == null;
+        options = new AgentOptions(args, 2);
+        quiet = options.getBoolean("quiet", false);
+        gamma = options.getDouble("gamma", 0.9);
+        learningRate = options.getDouble("learningRate", options.getString("optimizer", "sgd").equalsIgnoreCase("sgd") ? .0001 : .01);
+        epsilon = options.getDouble("epsilon", 0.02);
+        testBlock = options.getInt("testEpisodes", 5);
+        exploreBlock = options.getInt("exploreEpisodes", 10);
+        if (testBlock < 1 || exploreBlock < 0) {
+            throw new IllegalArgumentException("Need at least one test episode and no negative number of exploration episodes per cycle.");
+        }
+        metrics = new AgentMetrics(options);
+        stalemates = new StalemateDetector(options.getInt("stalemateTurns", 0),
+                options.getInt("stalemateFailures", 0));
+        stalemateReward = options.getDouble("stalemateReward", -50);
+        saveWeights = options.getBoolean("save", true);
+        features = FeatureRegistry.compile(options.getString("features", FeatureRegistry.DEFAULT_FEATURES));
+        int tilings = options.getInt("tilings", 0);
+        if (tilings > 0) {
+            if (sharedQFunction != null) {
+                throw new IllegalArgumentException("tilings cannot be used with shared weights, only the dense weights are shared.");
+            }
+            tileCoder = new TileCoder(tilings);
+            sparseQ = new SparseQFunction();
+            tileRate = options.getDouble("tileRate", 0.1);
+            scratchTiles = new long[tileCoder.getActiveTiles()];
+        }
+        featureInputs = features.getInputs() | (tileCoder != null ? TileCoder.INPUTS : 0);
+        if((featureInputs & FeatureContext.PATHS) != 0){
+        	unitGrid.trackPaths(options.getInt("pathRadius", DistanceFields.DEFAULT_RADIUS));
+        }
+        qTable = new QTable(features.size(), tileCoder != null ? tileCoder.getActiveTiles() : 0);
+        scratchFeatures = new double[features.size()];
+        damageWindow = new DamageWindow(options.getInt("damageWindow", DamageWindow.DEFAULT_TURNS), playernum);
+        rewardStats = new RewardStats(testBlock, options.getInt("rewardCurve", RewardStats.DEFAULT_CURVE_POINTS));
+        String assign = options.getString("assign", "joint");
+        if (!assign.equals("joint") && !assign.equals("greedy")) {
+            throw new IllegalArgumentException("Unknown assign mode \"" + assign + "\", expected joint or greedy.");
+        }
+        jointAssignment = assign.equals("joint");
+        targetCapacity = options.getInt("targetCapacity", 3);
+        parallel = options.getBoolean("parallel", false);
+        parallelThreshold = options.getInt("parallelThreshold", 100);
+        if (options.has("record")) {
+            try {
+                recorder = new TraceRecorder(TraceRecorder.newTraceFile(new File(options.getString("record", "traces"))), playernum);
+            } catch (IOException ex) {
+                System.err.println("Failed to create an episode trace, not recording. Reason: " + ex.getMessage());
+            }
+        }
 
         if (args.length >= 1) {
             numEpisodes = Integer.parseInt(args[0]);
-            System.out.println("Running " + numEpisodes + " episodes.");
+            if (!quiet) {
+                System.out.println("Running " + numEpisodes + " episodes.");
+            }
         } else {
             numEpisodes = 10;
             System.out.println("Warning! Number of episodes not specified. Defaulting to 10 episodes.");
@@ -99,24 +355,62 @@ public class RLAgent extends Agent {
             System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
         }
 
-        if (loadWeights) {
-            weights = loadWeights();
+        int replayCapacity = options.getInt("replay", 0);
+        if (replayCapacity > 0) {
+            replayBuffer = new ReplayBuffer(replayCapacity, features.size());
+            replayBatch = options.getInt("replayBatch", 32);
+            replayRatio = options.getDouble("replayRatio", 4.0);
+        }
+        lambda = options.getDouble("lambda", 0.0);
+        if (lambda < 0 || lambda > 1) {
+            throw new IllegalArgumentException("lambda must be between 0 and 1, was " + lambda);
+        }
+        if (lambda > 0) {
+            if (replayBuffer != null) {
+                throw new IllegalArgumentException("lambda and replay cannot be used together, replayed transitions have no traces.");
+            }
+            traces = new EligibilityTraces(features.size());
+        }
+        tdClip = options.getDouble("tdClip", 100);
+        if (tdClip < 0) {
+            throw new IllegalArgumentException("tdClip must not be negative, was " + tdClip);
+        }
+        if (tileCoder != null && (replayBuffer != null || traces != null)) {
+            throw new IllegalArgumentException("tilings cannot be used with replay or lambda, tiles are only trained by one-step updates.");
+        }
+        if (tileCoder != null && loadWeights) {
+            sparseQ = loadTiles();
+        }
+        if (sharedQFunction != null && (options.has("optimizer") || options.has("normalize"))) {
+            throw new IllegalArgumentException("optimizer and normalize cannot be used with shared weights, whoever owns the weights sets them up.");
+        }
+        if (options.getBoolean("normalize", false)) {
+            normalizer = loadWeights ? loadNormalizer() : new FeatureNormalizer(features.size());
+        }
+
+        double[] loaded = loadWeights && ownsWeights ? loadCheckpoint() : null;
+        if (sharedQFunction != null) {
+            qFunction = sharedQFunction;
+        } else if (loaded != null && loaded.length == features.size()) {
+            qFunction = new LinearQFunction(loaded);
         } else {
+            if (loaded != null) {
+                System.err.println("Saved weights have " + loaded.length + " features, expected " + features.size() + ". Starting from random weights.");
+            }
             // initialize weights to random values between -1 and 1
-            weights = new Double[NUM_FEATURES];
-            weights[0] = 1.0;
-            for (int i = 1; i < weights.length; i++) {
-                weights[i] = random.nextDouble() * 2 - 1;
+            qFunction = LinearQFunction.random(features.size(), random);
+        }
+        if (ownsWeights) {
+            Optimizer optimizer = Optimizer.fromOptions(options, features.size());
+            if (optimizer.getKind() != Optimizer.Kind.SGD) {
+                qFunction.setOptimizer(optimizer);
             }
         }
         
         cumulativeReward = new HashMap<Integer, Double>();
-        previousFeatures = new HashMap<Integer, Double[]>();
-        beingAttackedBy = new HashMap<Integer, Set<Integer>>();
+        previousFeatures = new HashMap<Integer, double[]>();
         lastAssignedAMove = new HashMap<Integer, Integer>();
         attackedBy = new HashMap<Integer, attackedByStatus>();
-        averageRewards = new ArrayList<Double>();
-        averageRewardsOverFiveEpisodes = new ArrayList<Double>();
     }
 
     /**
@@ -126,15 +420,23 @@ public class RLAgent extends Agent {
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
 
         //if( ((episodeNum++) / 5 ) % 2 == 0){
-    	if( ((episodeNum) / 5) % 3 != 0){
+    	if(episodeNum % (testBlock + exploreBlock) >= testBlock){
         	//System.out.println("EXPLORING in this episode.");
         	explorationEpisode = true;
         }else{
         	//System.out.println("EXPLOITING in this episode.");
         	explorationEpisode = false;
-        	lastExploit = episodeNum % 15 == 4;
+        	lastExploit = episodeNum % (testBlock + exploreBlock) == testBlock - 1;
         }
     	episodeNum++;
+    	metrics.startEpisode(episodeNum, explorationEpisode);
+    	stalemates.startEpisode();
+    	invalidateTurnCaches();
+    	targets.clear();
+    	damageWindow.clear();
+    	if(traces != null){
+    		traces.clear();
+    	}
 
         // Find all of your units
         myFootmen = new HashSet<>();
@@ -144,7 +446,9 @@ public class RLAgent extends Agent {
             String unitName = unit.getTemplateView().getName().toLowerCase();
             if (unitName.equals("footman")) {
                 myFootmen.add(unitId);
-                previousFeatures.put(unitId, new Double[weights.length]);
+                if (!previousFeatures.containsKey(unitId)) {
+                    previousFeatures.put(unitId, new double[features.size()]);
+                }
             } else {
                 System.err.println("Unknown unit type: " + unitName);
             }
@@ -163,7 +467,10 @@ public class RLAgent extends Agent {
             }
         }
         
-        rewardsFromCurrentEpisode = new ArrayList<Double>();
+        rewardStats.startEpisode();
+        if(recorder != null){
+        	recorder.startEpisode(episodeNum, explorationEpisode, stateView);
+        }
 
         return middleStep(stateView, historyView);
     }
@@ -196,24 +503,120 @@ public class RLAgent extends Agent {
      */
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+    	long turnStart = metrics.start();
+    	metrics.turn();
+    	boolean quietTurn = isQuietTurn(stateView, historyView);
+    	if(isStalemate(stateView, historyView, quietTurn)){
+    		metrics.stop(AgentMetrics.Phase.TURN, turnStart);
+    		return NO_ACTIONS;
+    	}
+    	if(quietTurn){
+    		metrics.quietTurn();
+    		metrics.stop(AgentMetrics.Phase.TURN, turnStart);
+    		return NO_ACTIONS;
+    	}
+    	currentUnits(stateView);
+    	if(recorder != null){
+    		recorder.beginTurn(stateView, historyView);
+    	}
     	Map<Integer, Action> ret = new HashMap<Integer, Action>();
         Set<Integer> inactiveUnits;
         if(stateView.getTurnNumber() != 0){
+        	long rewardsStart = metrics.start();
         	inactiveUnits = calcRewardsAndGetInactiveUnits(stateView, historyView,ret);
-        	
+        	metrics.stop(AgentMetrics.Phase.REWARDS, rewardsStart);
         }else{
         	inactiveUnits = new HashSet<Integer>();
         	inactiveUnits.addAll(myFootmen);
         }
+        if(runParallel()){
+        	scoreRows(stateView, historyView, inactiveUnits);
+        }
+        if(jointAssignment){
+        	selectActions(stateView, historyView, inactiveUnits);
+        }
         for(Integer footmanId : inactiveUnits){
-        	ret.put(footmanId, Action.createCompoundAttack(footmanId, selectAction(stateView, historyView, footmanId)));
+        	if(!myFootmen.contains(footmanId)){
+        		// footmen that died on an earlier turn can still be listed as attackers of a dead enemy
+        		continue;
+        	}
+        	int enemyToAttack = jointAssignment ? targets.targetOf(footmanId) : selectAction(stateView, historyView, footmanId);
+        	if(enemyToAttack < 0){
+        		// every enemy is dead, the episode is about to end
+        		continue;
+        	}
+        	ret.put(footmanId, Action.createCompoundAttack(footmanId, enemyToAttack));
         	cumulativeReward.put(footmanId, -0.1);
         	lastAssignedAMove.put(footmanId, 0);
+        	if(recorder != null){
+        		recorder.decision(footmanId);
+        	}
+        }
+        if(recorder != null){
+        	recorder.endTurn(ret, units);
         }
         //System.out.println(ret);
+        metrics.stop(AgentMetrics.Phase.TURN, turnStart);
     	return ret;
     }
 
+    /**
+     * True if nothing happened on the last turn that the full middleStep would react to: no unit died,
+     * no damage was dealt and none of our footmen's actions completed or failed. No footman then has an
+     * event or needs a new target, so the turn's answer is to issue nothing, and the reward pass, unit
+     * snapshot and everything else per turn can be skipped. What they would have read stays in the
+     * history and is caught up on the next turn that needs it.
+     */
+    private boolean isQuietTurn(State.StateView stateView, History.HistoryView historyView) {
+    	int lastTurnNumber = stateView.getTurnNumber() - 1;
+    	if(lastTurnNumber < 0 || !historyView.getDeathLogs(lastTurnNumber).isEmpty()
+    			|| !historyView.getDamageLogs(lastTurnNumber).isEmpty()){
+    		return false;
+    	}
+    	for(ActionResult result : historyView.getCommandFeedback(playernum, lastTurnNumber).values()){
+    		if(result.getFeedback() == ActionFeedback.COMPLETED || result.getFeedback() == ActionFeedback.FAILED){
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * Counts the last turn towards a stalemate. A stalemate declared on an earlier turn that the runner
+     * did not end the episode on is dropped, and play goes on.
+     *
+     * @param quietTurn True if nothing happened on the last turn, see isQuietTurn
+     * @return True if the episode is a stalemate and the agent should wait for it to be ended
+     */
+    private boolean isStalemate(State.StateView stateView, History.HistoryView historyView, boolean quietTurn) {
+    	int turnNumber = stateView.getTurnNumber();
+    	if(stalemates.isStalemate()){
+    		stalemates.resume(turnNumber);
+    		return false;
+    	}
+    	if(turnNumber == 0){
+    		return false;
+    	}
+    	boolean progress = false;
+    	int failed = 0;
+    	if(!quietTurn){
+    		progress = !historyView.getDeathLogs(turnNumber - 1).isEmpty() || !historyView.getDamageLogs(turnNumber - 1).isEmpty();
+    		for(ActionResult result : historyView.getCommandFeedback(playernum, turnNumber - 1).values()){
+    			if(result.getFeedback() == ActionFeedback.FAILED){
+    				failed++;
+    			}
+    		}
+    	}
+    	return stalemates.turn(turnNumber, progress, failed);
+    }
+
+    /**
+     * @return True once the current episode has been declared a stalemate, until it ends
+     */
+    boolean isStalemate() {
+    	return stalemates.isStalemate();
+    }
+
     /**
      * Here you will calculate the cumulative average rewards for your testing episodes. If you have just
      * finished a set of test episodes you will call out testEpisode.
@@ -224,37 +627,50 @@ public class RLAgent extends Agent {
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
 
     	removeDead(stateView, historyView);
-    	updateWin();
+    	boolean stalemate = stalemates.isStalemate();
+    	boolean won = !stalemate && !myFootmen.isEmpty();
+    	int footmenLeft = myFootmen.size();
+    	if(stalemate){
+    		endStalemate(stateView, historyView);
+    		// the runner checks for the end of the next episode before its first step
+    		stalemates.startEpisode();
+    	}
+    	updateWin(won);
+    	turnsPlayed += stateView.getTurnNumber();
+    	metrics.endEpisode(won, stalemate, footmenLeft, enemyFootmen.size());
+    	if(recorder != null){
+    		recorder.endEpisode(won, stateView.getTurnNumber());
+    	}
+    	if(!explorationEpisode){
+    		testEpisodes++;
+    		if(won){
+    			testWins++;
+    		}
+    	}
         // MAKE SURE YOU CALL printTestData after you finish a test episode.
     	if(!explorationEpisode){
-	    	double sum = 0.0;
-	    	for(Double d : rewardsFromCurrentEpisode){
-	    		sum += d;
-
-	    		//System.out.println("Reward: "+d);
-	    	}
-	    	//System.out.println("Sum: "+sum+"  Size:"+rewardsFromCurrentEpisode.size());
-	    	double avg = sum/rewardsFromCurrentEpisode.size();
-	    	averageRewardsOverFiveEpisodes.add(avg);
+	    	rewardStats.addToWindow(rewardStats.episodeAverage());
 	    	if(lastExploit){
-	    		sum = 0.0;
-	    		for(Double d : averageRewardsOverFiveEpisodes){
-		    		sum += d;
-		    	}
-	    		avg = sum / averageRewardsOverFiveEpisodes.size();
-	    		averageRewards.add(avg);
-	    		printTestData(averageRewards);
+	    		// the window holds exactly this block's test episodes
+	    		rewardStats.addCurvePoint(rewardStats.windowAverage(), gamesPlayedBeforeCycle());
+	    		if(!quiet){
+	    			// printTestData writes straight to stdout, after anything still queued
+	    			AsyncLog.shared().flush();
+	    			printTestData(rewardStats.curveGamesPlayed(), rewardStats.curve());
+	    			AsyncLog.shared().println("We won "+winCount+" out of "+testBlock+".");
+	    			AsyncLog.shared().println(String.format("Rewards per event: mean %.2f, sd %.2f, median %.2f, 90th percentile %.2f",
+	    					rewardStats.mean(), Math.sqrt(rewardStats.variance()), rewardStats.percentile(0.5), rewardStats.percentile(0.9)));
+	    		}
 	    		
-	    		averageRewardsOverFiveEpisodes.clear();
-	    		System.out.println("We won "+winCount+" out of 5.");
 	    		winCount = 0;
 	    		/*if(avg > 63){
 	    			epsilon = 0.0;
 	    		}*/
 	    	}
-	    	//rewardsFromCurrentEpisode.clear();
-    	}else if(((episodeNum) / 5) % 3 == 0){
-    		System.out.println("We won "+winCount+" out of 10.");
+    	}else if(episodeNum % (testBlock + exploreBlock) == 0){
+    		if(!quiet){
+    			AsyncLog.shared().println("We won "+winCount+" out of "+exploreBlock+".");
+    		}
     		winCount = 0;
     	}
     	else if(episodeNum >= 25){
@@ -263,13 +679,101 @@ public class RLAgent extends Agent {
     	
     	
     	
+    	if(replayBuffer != null && newTransitions > 0){
+    		long replayStart = metrics.start();
+    		int batches = (int) Math.ceil(newTransitions * replayRatio / replayBatch);
+    		for(int i = 0; i < batches; i++){
+    			replayBuffer.replay(qFunction, replayBatch, gamma, learningRate, tdClip, random);
+    			metrics.weightUpdate();
+    		}
+    		newTransitions = 0;
+    		metrics.stop(AgentMetrics.Phase.UPDATES, replayStart);
+    	}
+    	
         // Save your weights
-        saveWeights(weights);
+    	if(ownsWeights && saveWeights){
+    		if(checkpointer == null){
+    			checkpointer = new WeightCheckpointer(new File("agent_weights/weights.bin"),
+    					options.getBoolean("textWeights", true) ? new File("agent_weights/weights.txt") : null,
+    					options.getInt("checkpointEvery", 1));
+    		}
+    		checkpointer.episodeFinished(features.getLayout(), episodeNum, gamma, learningRate, epsilon, qFunction.getWeights(),
+    				tileCoder != null ? tileCoder.getLayout() : null, sparseQ, normalizer);
+    	}
+
+    }
+
+    LinearQFunction getQFunction() {
+    	return qFunction;
+    }
 
+    int getTestEpisodes() {
+    	return testEpisodes;
     }
 
-    private void updateWin() {
-    	if(myFootmen.isEmpty()){
+    int getTestWins() {
+    	return testWins;
+    }
+
+    int getNumFeatures() {
+    	return features.size();
+    }
+
+    String getFeatureLayout() {
+    	return features.getLayout();
+    }
+
+    long getTurnsPlayed() {
+    	return turnsPlayed;
+    }
+
+    /**
+     * @return A copy of the learning curve printTestData prints, one average reward per cycle of test
+     * episodes, or per RewardStats.cyclesPerPoint() cycles once the curve has filled
+     */
+    List<Double> getAverageRewards() {
+    	return new ArrayList<Double>(rewardStats.curve());
+    }
+
+    /**
+     * @return A copy of the number of games played before each point of getAverageRewards
+     */
+    List<Long> getCurveGamesPlayed() {
+    	return new ArrayList<Long>(rewardStats.curveGamesPlayed());
+    }
+
+    /**
+     * @return The number of learning episodes played before the current cycle's test episodes, as
+     * printTestData counts games played: 10 per cycle with the default schedule
+     */
+    private long gamesPlayedBeforeCycle() {
+    	return (long) ((episodeNum - 1) / (testBlock + exploreBlock)) * exploreBlock;
+    }
+
+    /**
+     * Gives every living footman the stalemate reward as a terminal reward: its last decision is
+     * updated with no next state, as if it had died, during exploration, and the reward is counted
+     * in the test statistics otherwise.
+     */
+    private void endStalemate(State.StateView stateView, History.HistoryView historyView) {
+    	List<Integer> living = new ArrayList<Integer>(myFootmen);
+    	myFootmen.clear();
+    	for(Integer footmanId : living){
+    		Double reward = cumulativeReward.get(footmanId);
+    		if(reward == null){
+    			continue;
+    		}
+    		cumulativeReward.put(footmanId, reward + stalemateReward);
+    		if(explorationEpisode){
+    			updateWeights(stateView, historyView, footmanId);
+    		}else{
+    			rewardStats.add(footmanId, reward + stalemateReward);
+    		}
+    	}
+    }
+
+    private void updateWin(boolean won) {
+    	if(!won){
     		//System.out.println("The enemy won, with "+enemyFootmen.size()+" units left.");
     	}else{
     		//System.out.println("We won, with "+myFootmen.size()+" units left!");
@@ -278,6 +782,7 @@ public class RLAgent extends Agent {
 	}
 
 	private void removeDead(StateView stateView, HistoryView historyView) {
+		qTable.invalidate();
     	for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() - 1)) {
     		if(deathLog.getController() == playernum){
     			myFootmen.remove(deathLog.getDeadUnitID());
@@ -298,55 +803,203 @@ public class RLAgent extends Agent {
      * @return The updated weight vector.
      */
     public void updateWeights(State.StateView stateView, History.HistoryView historyView, int footmanId) {
-        Double[] oldFeatures = previousFeatures.get(footmanId);
+        long updateStart = metrics.start();
+        double[] oldFeatures = previousFeatures.get(footmanId);
         double actualReward = cumulativeReward.get(footmanId);
-        rewardsFromCurrentEpisode.add(actualReward);
-        double qVal = dotProduct(weights, oldFeatures);
+        rewardStats.add(footmanId, actualReward);
         
        // System.out.println("Old features: "+Arrays.toString(oldFeatures));
         //System.out.println("Reward: "+actualReward);
         
-        double predictedQ = myFootmen.contains(footmanId) ? calcQValue(stateView, historyView, footmanId, selectAction(stateView, historyView, footmanId)) : 0;
-        double LVal = -(actualReward - qVal + gamma*predictedQ);
-       // System.out.println("Old weights: "+Arrays.toString(weights));
-        
-        for(int i = 1; i < weights.length; i++){
-        	//not sure if this is right
-        	weights[i] -= learningRate*LVal*oldFeatures[i];
+        if(replayBuffer != null){
+        	if(myFootmen.contains(footmanId)){
+        		int row = scoredRow(stateView, historyView, footmanId);
+        		replayBuffer.add(oldFeatures, actualReward, qTable.getFeatures(), qTable.featureOffset(row, 0), qTable.getNumDefenders());
+        	}else{
+        		replayBuffer.add(oldFeatures, actualReward, null, 0, 0);
+        	}
+        	newTransitions++;
+        }else{
+	        long[] oldTiles = previousTiles.get(footmanId);
+	        double qVal = qFunction.value(oldFeatures);
+	        if(oldTiles != null){
+	        	qVal += sparseQ.value(oldTiles, 0, oldTiles.length);
+	        }
+	        double predictedQ = myFootmen.contains(footmanId) ? maxQValue(stateView, historyView, footmanId) : 0;
+	        double LVal = -(actualReward - qVal + gamma*predictedQ);
+	        if(tdClip > 0){
+	        	LVal = Math.max(-tdClip, Math.min(tdClip, LVal));
+	        }
+	       // System.out.println("Old weights: "+Arrays.toString(weights));
+	        
+	        if(traces != null){
+	        	int trace = traces.accumulate(footmanId, gamma * lambda, oldFeatures);
+	        	qFunction.update(traces.getTraces(), trace, -LVal, learningRate);
+	        }else{
+	        	qFunction.update(oldFeatures, -LVal, learningRate);
+	        }
+	        if(oldTiles != null){
+	        	sparseQ.update(oldTiles, 0, oldTiles.length, -LVal, tileRate / oldTiles.length);
+	        }
+	        metrics.weightUpdate();
         }
         //System.out.println("New weights: "+Arrays.toString(weights));
         if(!myFootmen.contains(footmanId)){
         	previousFeatures.remove(footmanId);
+        	previousTiles.remove(footmanId);
         	cumulativeReward.remove(footmanId);
-        	for(Set<Integer> myUnits : beingAttackedBy.values()){
-        		myUnits.remove(footmanId);
+        	if(traces != null){
+        		traces.reset(footmanId);
         	}
         }
+        metrics.stop(AgentMetrics.Phase.UPDATES, updateStart);
     }
 
-    private int selectMaxAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
-    	int enemyToAttack = -1;
-        double bestQ = Double.NEGATIVE_INFINITY;
-    	for(Integer enemyId : enemyFootmen){
-        	double curQVal = calcQValue(stateView, historyView, attackerId, enemyId);
-        	if(curQVal > bestQ){
-        		bestQ = curQVal;
-        		enemyToAttack = enemyId;
-        		
-        	}	
-        }
-    	return enemyToAttack;
+    int selectMaxAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	int row = scoredRow(stateView, historyView, attackerId);
+    	int column = qTable.maxColumn(row);
+    	return column < 0 ? -1 : qTable.getDefender(column);
     }
     private int selectRandomAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
-    	int enemyToAttack = -1;
-        double bestQ = Double.NEGATIVE_INFINITY;
-        ArrayList<Integer> toChoose = new ArrayList<Integer>();
-    	for(Integer enemyId : enemyFootmen){
-        		toChoose.add(enemyId);
-        }	
-        double randomVal = Math.random()*toChoose.size();
-        enemyToAttack = toChoose.get((int)randomVal);
-    	return enemyToAttack;
+    	int numEnemies = qTable.getNumDefenders();
+    	return numEnemies == 0 ? -1 : qTable.getDefender(random.nextInt(numEnemies));
+    }
+
+    /**
+     * The highest Q-value this footman can get by attacking any of the living enemies this turn.
+     * Used as the next state value in the weight update, so it must not change any assignments.
+     */
+    private double maxQValue(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	int row = scoredRow(stateView, historyView, attackerId);
+    	int column = qTable.maxColumn(row);
+    	return column < 0 ? 0 : qTable.getQValue(row, column);
+    }
+
+    /**
+     * Makes sure the Q-table is filled for this turn and the footman's row is scored with the
+     * current weights.
+     *
+     * @return The footman's row in the Q-table
+     */
+    private int scoredRow(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	fillTable(stateView, historyView, attackerId);
+    	int row = qTable.rowOf(attackerId);
+    	if(!qTable.isRowCurrent(row, qFunction.getVersion())){
+    		scoreRow(row);
+    	}
+    	return row;
+    }
+
+    /**
+     * Makes sure the Q-table features are filled for this turn and include the footman.
+     */
+    private void fillTable(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+    	if(qTable.isValidFor(stateView.getTurnNumber()) && qTable.rowOf(attackerId) >= 0){
+    		return;
+    	}
+    	long featuresStart = metrics.start();
+    	qTable.reset(stateView.getTurnNumber(), myFootmen, enemyFootmen);
+    	if(runParallel()){
+    		prepareFeatureContext(stateView, historyView);
+    		final int columns = qTable.getNumDefenders();
+    		ForkJoinPool pool = ForkJoinPool.commonPool();
+    		long dead = ParallelRows.forEach(pool, qTable.getNumAttackers(), ParallelRows.grain(pool, qTable.getNumAttackers()), new ParallelRows.Body() {
+    			@Override
+    			public long run(int from, int to) {
+    				FeatureContext context = featureContext.copyTurn();
+    				long dead = 0;
+    				for(int row = from; row < to; row++){
+    					for(int column = 0; column < columns; column++){
+    						features.evaluate(context, qTable.getAttacker(row), qTable.getDefender(column),
+    								qTable.getFeatures(), qTable.featureOffset(row, column));
+    						if(tileCoder != null){
+    							tileCoder.encode(context, qTable.getTiles(), qTable.tileOffset(row, column));
+    						}
+    						if(!context.bothAlive()){
+    							dead++;
+    						}
+    					}
+    				}
+    				return dead;
+    			}
+    		});
+    		metrics.deadUnitFeatures(dead);
+    	}else{
+    		for(int row = 0; row < qTable.getNumAttackers(); row++){
+    			for(int column = 0; column < qTable.getNumDefenders(); column++){
+    				calculateFeatureVector(stateView, historyView, qTable.getAttacker(row), qTable.getDefender(column),
+    						qTable.getFeatures(), qTable.featureOffset(row, column));
+    				if(tileCoder != null){
+    					tileCoder.encode(featureContext, qTable.getTiles(), qTable.tileOffset(row, column));
+    				}
+    			}
+    		}
+    	}
+    	if(normalizer != null){
+    		int pairs = qTable.getNumAttackers() * qTable.getNumDefenders();
+    		if(explorationEpisode){
+    			normalizer.observe(qTable.getFeatures(), 0, pairs);
+    		}
+    		normalizer.normalize(qTable.getFeatures(), 0, pairs);
+    	}
+    	metrics.stop(AgentMetrics.Phase.FEATURES, featuresStart);
+    }
+
+    /**
+     * Scores every enemy in the footman's row with one batched call, see LinearQFunction.values.
+     */
+    private void scoreRow(int row) {
+    	// read before scoring, so an update made meanwhile leaves the row stale rather than marked current
+    	long version = qFunction.getVersion();
+    	qFunction.values(qTable.getFeatures(), qTable.featureOffset(row, 0), qTable.getNumDefenders(),
+    			qTable.getQValues(), qTable.qValueOffset(row));
+    	if(sparseQ != null){
+    		for(int column = 0; column < qTable.getNumDefenders(); column++){
+    			qTable.setQValue(row, column, qTable.getQValue(row, column)
+    					+ sparseQ.value(qTable.getTiles(), qTable.tileOffset(row, column), qTable.getTilesPerPair()));
+    		}
+    	}
+    	qTable.markRowCurrent(row, version);
+    }
+
+    private boolean runParallel() {
+    	return parallel && myFootmen.size() + enemyFootmen.size() >= parallelThreshold;
+    }
+
+    /**
+     * Fills the Q-table and scores the rows of the given footmen with the current weights in parallel,
+     * ahead of the decisions that read them. See parallel.
+     */
+    private void scoreRows(State.StateView stateView, History.HistoryView historyView, Collection<Integer> footmenIds) {
+    	if(rowsToScore.length < footmenIds.size()){
+    		rowsToScore = new int[footmenIds.size()];
+    	}
+    	int numRows = 0;
+    	for(Integer footmanId : footmenIds){
+    		if(!myFootmen.contains(footmanId)){
+    			continue;
+    		}
+    		fillTable(stateView, historyView, footmanId);
+    		int row = qTable.rowOf(footmanId);
+    		if(!qTable.isRowCurrent(row, qFunction.getVersion())){
+    			rowsToScore[numRows++] = row;
+    		}
+    	}
+    	if(numRows == 0){
+    		return;
+    	}
+    	long selectionStart = metrics.start();
+    	ForkJoinPool pool = ForkJoinPool.commonPool();
+    	ParallelRows.forEach(pool, numRows, ParallelRows.grain(pool, numRows), new ParallelRows.Body() {
+    		@Override
+    		public long run(int from, int to) {
+    			for(int i = from; i < to; i++){
+    				scoreRow(rowsToScore[i]);
+    			}
+    			return 0;
+    		}
+    	});
+    	metrics.stop(AgentMetrics.Phase.SELECTION, selectionStart);
     }
 
     /**
@@ -356,36 +1009,95 @@ public class RLAgent extends Agent {
      * @param stateView Current state of the game
      * @param historyView The entire history of this episode
      * @param attackerId The footman that will be attacking
-     * @return The enemy footman ID this unit should attack
+     * @return The enemy footman ID this unit should attack, or -1 if there are no enemies left
      */
     public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
-        int enemyToAttack = -1;
-        double bestQ = Double.NEGATIVE_INFINITY;
-        int nTrails = stateView.getTurnNumber()*2;
+    	long selectionStart = metrics.start();
+    	int enemyToAttack;
+    	int row = scoredRow(stateView, historyView, attackerId);
+    	// one draw per decision, and only explore while we are learning
+    	if(explorationEpisode && random.nextDouble() < epsilon){
+    		enemyToAttack = selectRandomAction(stateView, historyView, attackerId);
+    	}else{
+    		enemyToAttack = selectMaxAction(stateView, historyView, attackerId);
+    	}
+    	if(enemyToAttack < 0){
+    		metrics.stop(AgentMetrics.Phase.SELECTION, selectionStart);
+    		return enemyToAttack;
+    	}
+    	commitAction(attackerId, row, enemyToAttack);
+    	metrics.stop(AgentMetrics.Phase.SELECTION, selectionStart);
     	
-        int counter = 0;
-        double maxtrails=epsilon*nTrails;
-    	for(int i = 0; i<nTrails; i++)
-    	{
-    		if(counter<maxtrails){
-    			enemyToAttack = selectRandomAction(stateView,historyView,attackerId);
-    			counter++;
+    	return enemyToAttack;
+    }
+
+    /**
+     * selectAction for every footman that needs a target this turn at once, see jointAssignment.
+     * Each footman still explores with probability epsilon; the rest are assigned together around
+     * the footmen already attacking and the explorers. The choices are left in targets.
+     *
+     * @param footmenIds Footmen that need a target. Dead ones are skipped.
+     */
+    void selectActions(State.StateView stateView, History.HistoryView historyView, Collection<Integer> footmenIds) {
+    	long selectionStart = metrics.start();
+    	if(jointFootmen.length < footmenIds.size()){
+    		jointFootmen = new int[footmenIds.size()];
+    	}
+    	int numJoint = 0;
+    	for(Integer footmanId : footmenIds){
+    		if(!myFootmen.contains(footmanId)){
+    			continue;
     		}
-    		else{
-    			enemyToAttack = selectMaxAction(stateView,historyView,attackerId);
+    		targets.unassign(footmanId);
+    		int row = scoredRow(stateView, historyView, footmanId);
+    		if(explorationEpisode && random.nextDouble() < epsilon){
+    			int enemyToAttack = selectRandomAction(stateView, historyView, footmanId);
+    			if(enemyToAttack >= 0){
+    				commitAction(footmanId, row, enemyToAttack);
+    			}
+    		}else{
+    			jointFootmen[numJoint++] = footmanId;
     		}
-    		
     	}
-    	previousFeatures.put(attackerId, calculateFeatureVector(stateView, historyView, attackerId, enemyToAttack));
-    	if(beingAttackedBy.containsKey(enemyToAttack)){
-    		beingAttackedBy.get(enemyToAttack).add(attackerId);
-    	}else{
-    		Set<Integer> attacking = new HashSet<Integer>();
-    		attacking.add(attackerId);
-    		beingAttackedBy.put(enemyToAttack, attacking);
+    	int columns = qTable.getNumDefenders();
+    	assignmentSolver.setSize(numJoint, columns);
+    	for(int column = 0; column < columns; column++){
+    		assignmentSolver.setCapacity(column, targetCapacity - targets.numAttackers(qTable.getDefender(column)));
     	}
-    	
-    	return enemyToAttack;
+    	for(int i = 0; i < numJoint; i++){
+    		int row = qTable.rowOf(jointFootmen[i]);
+    		for(int column = 0; column < columns; column++){
+    			assignmentSolver.setValue(i, column, qTable.getQValue(row, column));
+    		}
+    	}
+    	int[] assigned = assignmentSolver.solve();
+    	for(int i = 0; i < numJoint; i++){
+    		if(assigned[i] != AssignmentSolver.NONE){
+    			commitAction(jointFootmen[i], qTable.rowOf(jointFootmen[i]), qTable.getDefender(assigned[i]));
+    		}
+    	}
+    	metrics.stop(AgentMetrics.Phase.SELECTION, selectionStart);
+    }
+
+    /**
+     * Remembers the features of the footman's chosen action for its next weight update and points it at the enemy.
+     */
+    private void commitAction(int attackerId, int row, int enemyToAttack) {
+    	double[] chosenFeatures = previousFeatures.get(attackerId);
+    	if(chosenFeatures == null){
+    		chosenFeatures = new double[features.size()];
+    		previousFeatures.put(attackerId, chosenFeatures);
+    	}
+    	System.arraycopy(qTable.getFeatures(), qTable.featureOffset(row, qTable.columnOf(enemyToAttack)), chosenFeatures, 0, features.size());
+    	if(tileCoder != null){
+    		long[] chosenTiles = previousTiles.get(attackerId);
+    		if(chosenTiles == null){
+    			chosenTiles = new long[qTable.getTilesPerPair()];
+    			previousTiles.put(attackerId, chosenTiles);
+    		}
+    		System.arraycopy(qTable.getTiles(), qTable.tileOffset(row, qTable.columnOf(enemyToAttack)), chosenTiles, 0, chosenTiles.length);
+    	}
+    	targets.assign(attackerId, enemyToAttack);
     }
 
 
@@ -428,8 +1140,9 @@ public class RLAgent extends Agent {
     	Set<Integer> inactiveUnits = new HashSet<Integer>();
     	Set<Integer> myDead = new HashSet<Integer>();
     	Set<Integer> hadEvent = new HashSet<Integer>();
-    	Set<Integer> deadEnemies = new HashSet<Integer>();
-    	for(DeathLog deathLog : historyView.getDeathLogs(lastTurnNumber)) {
+    	damageWindow.catchUp(historyView, stateView.getTurnNumber());
+    	List<DeathLog> deathLogs = historyView.getDeathLogs(lastTurnNumber);
+    	for(DeathLog deathLog : deathLogs) {
     		if(deathLog.getController() == playernum){
     			int unitId = deathLog.getDeadUnitID();
     			hadEvent.add(unitId);
@@ -440,14 +1153,13 @@ public class RLAgent extends Agent {
     		}else{
     			int deadEnemy = deathLog.getDeadUnitID();
     			enemyFootmen.remove(deadEnemy);
-    			for(Integer myUnit : beingAttackedBy.get(deadEnemy)){
+    			for(int myUnit = targets.firstAttacker(deadEnemy); myUnit != TargetAssignments.NONE; myUnit = targets.nextAttacker(myUnit)){
     				//punishes footmen teaming up on others -- should make sure there is a feature to offset this
-    				cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) + (100.0/*/beingAttackedBy.get(deadEnemy).size()*/));
+    				cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) + (100.0/*/targets.numAttackers(deadEnemy)*/));
         			inactiveUnits.add(myUnit);
         			hadEvent.add(myUnit);
     			}
-    			//beingAttackedBy.remove(deadEnemy);
-    			deadEnemies.add(deadEnemy);
+    			// the assignments are kept until the end of the turn so the killing blow is still credited
     		}
     	}
     	
@@ -455,21 +1167,22 @@ public class RLAgent extends Agent {
     	for(Integer myUnit : myFootmen){
     		attackedBy.put(myUnit, attackedByStatus.NONE);
     	}
-    	for(DamageLog damageLog : historyView.getDamageLogs(lastTurnNumber)) {
-    		if(damageLog.getDefenderController() == playernum){
-    			int myUnit = damageLog.getDefenderID();
-    			int enemyId = damageLog.getAttackerID();
-    			cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) - damageLog.getDamage());
-    			if(beingAttackedBy.get(enemyId) != null && beingAttackedBy.get(enemyId).contains(myUnit)){
+    	for(int i = 0; i < damageWindow.events(lastTurnNumber); i++) {
+    		if(damageWindow.eventHitPlayer(lastTurnNumber, i)){
+    			int myUnit = damageWindow.eventDefender(lastTurnNumber, i);
+    			int enemyId = damageWindow.eventAttacker(lastTurnNumber, i);
+    			cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) - damageWindow.eventDamage(lastTurnNumber, i));
+    			if(targets.isAttacking(myUnit, enemyId)){
     				attackedBy.put(myUnit, attackedByStatus.ATTACKED_BY_TARGET);
     			}else if(attackedBy.get(myUnit) == attackedByStatus.NONE){
     				attackedBy.put(myUnit, attackedByStatus.NOT_ATTACKED_BY_TARGET);
     			}
     		}else{
-    			int enemyUnit = damageLog.getDefenderID();;
-    			for(Integer myUnit : beingAttackedBy.get(enemyUnit)){
+    			int enemyUnit = damageWindow.eventDefender(lastTurnNumber, i);
+    			int damage = damageWindow.eventDamage(lastTurnNumber, i);
+    			for(int myUnit = targets.firstAttacker(enemyUnit); myUnit != TargetAssignments.NONE; myUnit = targets.nextAttacker(myUnit)){
     				//System.out.println(cumulativeReward.get(myUnit));
-    				cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) + (damageLog.getDamage()/*1.0/beingAttackedBy.get(enemyUnit).size()*/));
+    				cumulativeReward.put(myUnit, cumulativeReward.get(myUnit) + (damage/*1.0/targets.numAttackers(enemyUnit)*/));
     			}
     		}
     	 }
@@ -480,16 +1193,16 @@ public class RLAgent extends Agent {
     		if(result.getValue().getFeedback() == ActionFeedback.COMPLETED || result.getValue().getFeedback() == ActionFeedback.FAILED){
     			//hadEvent.add(result.getKey());
     			if(myFootmen.contains(myUnitId)){
-	    			for(Entry<Integer, Set<Integer>> attacking : beingAttackedBy.entrySet()){
-	    				if(attacking.getValue().contains(myUnitId) && !deadEnemies.contains(attacking.getKey())){
-	    					actions.put(myUnitId, Action.createCompoundAttack(myUnitId, attacking.getKey()));
-	    					cumulativeReward.put(myUnitId, cumulativeReward.get(myUnitId) - 0.1);
-	    				}else if(deadEnemies.contains(attacking.getKey())){
-	    					hadEvent.add(myUnitId);
-	    					inactiveUnits.add(myUnitId);
-	    				}
-	    			}
-    			}else{
+    				int target = targets.targetOf(myUnitId);
+    				if(units.contains(target)){
+    					// target is still alive, keep going after it
+    					actions.put(myUnitId, Action.createCompoundAttack(myUnitId, target));
+    					cumulativeReward.put(myUnitId, cumulativeReward.get(myUnitId) - 0.1);
+    				}else{
+    					hadEvent.add(myUnitId);
+    					inactiveUnits.add(myUnitId);
+    				}
+    			}else if(cumulativeReward.containsKey(myUnitId)){
     				hadEvent.add(myUnitId);
     			}
     			/*if(myFootmen.contains(result.getKey())){
@@ -513,33 +1226,33 @@ public class RLAgent extends Agent {
     			hadEvent.add(myUnit);
     		}
     	}
+    	metrics.events(hadEvent.size());
+    	if(recorder != null){
+    		for(Integer unitHadEvent : hadEvent){
+    			recorder.reward(unitHadEvent, cumulativeReward.get(unitHadEvent));
+    		}
+    	}
     	if(explorationEpisode){
 	    	for(Integer unitHadEvent : hadEvent){
 	    		updateWeights(stateView, historyView, unitHadEvent);
 	    	}
 	    }else{
 	    	for(Integer unitHadEvent : hadEvent){
-	    		rewardsFromCurrentEpisode.add(cumulativeReward.get(unitHadEvent));
+	    		rewardStats.add(unitHadEvent, cumulativeReward.get(unitHadEvent));
 	    	}
 	    }
     	inactiveUnits.removeAll(myDead);
-    	for(Integer deadEnemy : deadEnemies){
-    		beingAttackedBy.remove(deadEnemy);
+    	for(DeathLog deathLog : deathLogs) {
+    		if(deathLog.getController() == playernum){
+    			targets.unassign(deathLog.getDeadUnitID());
+    		}else{
+    			targets.removeTarget(deathLog.getDeadUnitID());
+    		}
     	}
     	
     	return inactiveUnits;
     }
     
-    public double dotProduct(Double[] a, Double[] b){
-		if(a.length != b.length){
-			throw new IllegalArgumentException("The dimensions have to be equal!");
-		}
-		double sum = 0;
-		for(int i = 0; i < a.length; i++){
-			sum += a[i] * b[i];
-		}
-		return sum;
-	}
     /**
      * Calculate the Q-Value for a given state action pair. The state in this scenario is the current
      * state view and the history of this episode. The action is the attacker and the enemy pair for the
@@ -558,9 +1271,16 @@ public class RLAgent extends Agent {
                              History.HistoryView historyView,
                              int attackerId,
                              int defenderId) {
-    	Double feature[] = calculateFeatureVector(stateView, historyView, attackerId, defenderId);
-    	
-        return dotProduct(weights,feature);
+    	calculateFeatureVector(stateView, historyView, attackerId, defenderId, scratchFeatures, 0);
+    	if(normalizer != null){
+    		normalizer.normalize(scratchFeatures, 0, 1);
+    	}
+    	double q = qFunction.value(scratchFeatures);
+    	if(tileCoder != null){
+    		tileCoder.encode(featureContext, scratchTiles, 0);
+    		q += sparseQ.value(scratchTiles, 0, scratchTiles.length);
+    	}
+        return q;
     }
 
     /**
@@ -578,102 +1298,81 @@ public class RLAgent extends Agent {
      * @param historyView History of the game up until this turn
      * @param attackerId Your footman. The one doing the attacking.
      * @param defenderId An enemy footman. The one you are considering attacking.
+     * @param fv Buffer the feature function outputs are written into
+     * @param offset Index in fv of the first feature
+     */
+    public void calculateFeatureVector(State.StateView stateView,
+                                       History.HistoryView historyView,
+                                       int attackerId,
+                                       int defenderId,
+                                       double[] fv,
+                                       int offset) {
+        prepareFeatureContext(stateView, historyView);
+        features.evaluate(featureContext, attackerId, defenderId, fv, offset);
+        if(!featureContext.bothAlive()){
+        	metrics.deadUnitFeature();
+        }
+    }
+
+    /**
+     * Prepares the per-turn feature inputs, once per turn.
+     */
+    private void prepareFeatureContext(State.StateView stateView, History.HistoryView historyView) {
+        if(featureContext.isValidFor(stateView.getTurnNumber())){
+        	return;
+        }
+        UnitGrid grid = (featureInputs & FeatureContext.NEIGHBOURHOOD) != 0 ? currentGrid(stateView) : null;
+        DamageWindow damage = null;
+        if(features.needs(FeatureContext.DAMAGE_HISTORY)){
+        	damageWindow.catchUp(historyView, stateView.getTurnNumber());
+        	damage = damageWindow;
+        }
+        featureContext.beginTurn(currentUnits(stateView), playernum, enemyFootmen.size(), grid, damage, featureInputs);
+    }
+
+    /**
+     * Allocating version of calculateFeatureVector for callers outside the decision loop. Like it, returns
+     * the raw features, before any normalization.
+     *
      * @return The array of feature function outputs.
      */
-    public Double[] calculateFeatureVector(State.StateView stateView,
+    public double[] calculateFeatureVector(State.StateView stateView,
                                            History.HistoryView historyView,
                                            int attackerId,
                                            int defenderId) {
-        Double[] fv = new Double[5];
-        fv[0] = 1.0;
-        
-        UnitView at = stateView.getUnit(attackerId);
-        UnitView df = stateView.getUnit(defenderId);
-        double atHP = at == null? 0 : at.getHP();
-        double dfHP = df == null? 0 : df.getHP();
-        if(atHP + dfHP == 0){ atHP = 1; }
-        fv[1] = (atHP)/(atHP + dfHP);
-        
-        if(atHP == 0 || dfHP == 0){
-        	System.out.println("DEAD");
-        	fv[2] = 0.0;
-        }else{
-        	fv[2] = (double) Math.max(Math.abs(df.getXPosition() - at.getXPosition()),Math.abs(df.getYPosition() - at.getYPosition())) + 1000;
-        }
-        
-        fv[3] = isClosest(stateView,historyView,attackerId,defenderId);
-        fv[4] = numAttacking(stateView,historyView,attackerId,defenderId);
-        
-    	return fv;
+        double[] fv = new double[features.size()];
+        calculateFeatureVector(stateView, historyView, attackerId, defenderId, fv, 0);
+        return fv;
     }
 
-    private double isClosest(State.StateView stateView,
-    						History.HistoryView historyView,
-    						int attackerId,
-    						int defenderId){
-    	
-    	UnitView at = stateView.getUnit(attackerId);
-        UnitView df = stateView.getUnit(defenderId);
-        double chevdist = Math.max(Math.abs(df.getXPosition() - at.getXPosition()),Math.abs(df.getYPosition() - at.getYPosition()));
-    	for(Integer s: enemyFootmen){
-    		UnitView temp = stateView.getUnit(s);
-    		double val = Math.max(Math.abs(temp.getXPosition() - at.getXPosition()),Math.abs(temp.getYPosition() - at.getYPosition()));
-    		if(val<chevdist)
-    			return 0.0;
-    	}
-    	
-    	return 10.0;
-    }
-    
-    private double numAttacking(State.StateView stateView,
-			History.HistoryView historyView,
-			int attackerId,
-			int defenderId){
-
-    	UnitView at = stateView.getUnit(attackerId);
-    	double count = 0.0;
-       	for(Integer s: enemyFootmen){
-    			UnitView temp = stateView.getUnit(s);
-    			double val = Math.max(Math.abs(temp.getXPosition() - at.getXPosition()),Math.abs(temp.getYPosition() - at.getYPosition()));
-    			if(val<2.0)
-    				count++;
-    	}
-
-       	for(Integer s: myFootmen){
-			UnitView temp = stateView.getUnit(s);
-			double val = Math.max(Math.abs(temp.getXPosition() - at.getXPosition()),Math.abs(temp.getYPosition() - at.getYPosition()));
-			if(val<2.0 && s!=attackerId)
-				count--;
-       	}
-    	return count;
-    }
-    private Double justAttacked(StateView stateView, HistoryView historyView,
-			int attackerId, int defenderId) {
-    	for(int i = 1; i <= 3 && stateView.getTurnNumber() - i > 0; i++){
-	    	for(DamageLog damageLog : historyView.getDamageLogs(stateView.getTurnNumber() - i)) {
-	    		if(damageLog.getDefenderController() == playernum){
-	    			int myUnit = damageLog.getDefenderID();
-	    			int enemyId = damageLog.getAttackerID();
-	    			if(myUnit == attackerId && enemyId == defenderId){
-	    				return -10.0;
-	    			}
-	    		}
-	    	}
+    /**
+     * Forgets everything cached for the current turn, so the next decision recomputes the
+     * features of every pair even if the turn number has not changed.
+     */
+    void invalidateTurnCaches() {
+    	qTable.invalidate();
+    	units.invalidate();
+    	unitGrid.invalidate();
+    	featureContext.invalidate();
+    }
+    
+    private UnitGrid currentGrid(State.StateView stateView) {
+    	if(!unitGrid.isValidFor(stateView.getTurnNumber())){
+    		unitGrid.update(currentUnits(stateView), playernum);
     	}
-    	return 0.0;
-	}
-
-	private Double getDistanceIndex(int x, int y, int chebDist, StateView stateView) {
-    	List<Integer> sortedByDistance = new ArrayList<Integer>();
-    	for(Integer enemyId : enemyFootmen){
-    		UnitView en = stateView.getUnit(enemyId);
-    		sortedByDistance.add(Math.max(en.getXPosition() - x,en.getYPosition() - y));
+    	return unitGrid;
+    }
+    
+    /**
+     * @return The units of this turn, captured from the state on the first call of the turn
+     */
+    private UnitSnapshot currentUnits(State.StateView stateView) {
+    	if(!units.isValidFor(stateView.getTurnNumber())){
+    		units.capture(stateView);
     	}
-    	
-    	Collections.sort(sortedByDistance);
-    	return (double) sortedByDistance.size() - sortedByDistance.indexOf(chebDist);
-	}
-
+    	return units;
+    }
+    
 	/**
      * DO NOT CHANGE THIS!
      *
@@ -682,19 +1381,32 @@ public class RLAgent extends Agent {
      * @param averageRewards List of cumulative average rewards from test episodes.
      */
     public void printTestData (List<Double> averageRewards) {
+        List<Long> gamesPlayed = new ArrayList<Long>(averageRewards.size());
+        for (int i = 0; i < averageRewards.size(); i++) {
+            gamesPlayed.add(10L*i);
+        }
+        printTestData(gamesPlayed, averageRewards);
+    }
+
+    /**
+     * printTestData with the games played before each point given rather than assumed to be 10 per
+     * point: for schedules with other than 10 learning episodes per cycle (see exploreEpisodes=), and
+     * for a curve whose points each cover several cycles (see RewardStats).
+     */
+    private void printTestData(List<Long> gamesPlayed, List<Double> averageRewards) {
         System.out.println("");
         System.out.println("Games Played      Average Cumulative Reward");
         System.out.println("-------------     -------------------------");
         for (int i = 0; i < averageRewards.size(); i++) {
-            String gamesPlayed = Integer.toString(10*i);
+            String games = Long.toString(gamesPlayed.get(i));
             String averageReward = String.format("%.2f", averageRewards.get(i));
 
-            int numSpaces = "-------------     ".length() - gamesPlayed.length();
+            int numSpaces = "-------------     ".length() - games.length();
             StringBuffer spaceBuffer = new StringBuffer(numSpaces);
             for (int j = 0; j < numSpaces; j++) {
                 spaceBuffer.append(" ");
             }
-            System.out.println(gamesPlayed + spaceBuffer.toString() + averageReward);
+            System.out.println(games + spaceBuffer.toString() + averageReward);
         }
         System.out.println("");
     }
@@ -710,20 +1422,13 @@ public class RLAgent extends Agent {
      *
      * @param weights Array of weights
      */
-    public void saveWeights(Double[] weights) {
+    public void saveWeights(double[] weights) {
         File path = new File("agent_weights/weights.txt");
         // create the directories if they do not already exist
         path.getAbsoluteFile().getParentFile().mkdirs();
 
         try {
-            // open a new file writer. Set append to false
-            BufferedWriter writer = new BufferedWriter(new FileWriter(path, false));
-
-            for (double weight : weights) {
-                writer.write(String.format("%f\n", weight));
-            }
-            writer.flush();
-            writer.close();
+            LinearQFunction.writeText(path, weights);
         } catch(IOException ex) {
             System.err.println("Failed to write weights to file. Reason: " + ex.getMessage());
         }
@@ -738,7 +1443,7 @@ public class RLAgent extends Agent {
      *
      * @return The array of weights
      */
-    public Double[] loadWeights() {
+    public double[] loadWeights() {
         File path = new File("agent_weights/weights.txt");
         if (!path.exists()) {
             System.err.println("Failed to load weights. File does not exist");
@@ -746,21 +1451,95 @@ public class RLAgent extends Agent {
         }
 
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(path));
-            String line;
-            List<Double> weights = new LinkedList<>();
-            while((line = reader.readLine()) != null) {
-                weights.add(Double.parseDouble(line));
-            }
-            reader.close();
-
-            return weights.toArray(new Double[weights.size()]);
+            return LinearQFunction.readText(path);
         } catch(IOException ex) {
             System.err.println("Failed to load weights from file. Reason: " + ex.getMessage());
         }
         return null;
     }
 
+    /**
+     * Loads the binary checkpoint if there is one, falling back to the text weights otherwise.
+     *
+     * @return The weights, or null if there are none or they were saved for other features
+     */
+    private double[] loadCheckpoint() {
+        File path = new File("agent_weights/weights.bin");
+        if (!path.exists()) {
+            return loadTextWeights();
+        }
+        try {
+            WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.read(path);
+            if (!checkpoint.layout.equals(features.getLayout())) {
+                System.err.println("Checkpoint features " + checkpoint.layout + " do not match " + features.getLayout() + ". Starting from random weights.");
+                return null;
+            }
+            if (!quiet) {
+                System.out.println("Loaded weights checkpointed after episode " + checkpoint.episode + ".");
+            }
+            return checkpoint.weights;
+        } catch (IOException ex) {
+            System.err.println("Failed to load weight checkpoint. Reason: " + ex.getMessage());
+        }
+        return loadTextWeights();
+    }
+
+    /**
+     * loadWeights, refusing weights whose recorded feature layout does not match ours. Text weights
+     * saved before layouts were recorded are only checked by their length.
+     */
+    private double[] loadTextWeights() {
+        File layoutFile = WeightCheckpointer.layoutFile(new File("agent_weights/weights.txt"));
+        if (layoutFile.exists()) {
+            try {
+                String layout = WeightCheckpointer.readLayout(layoutFile);
+                if (!layout.equals(features.getLayout())) {
+                    System.err.println("Saved weight features " + layout + " do not match " + features.getLayout() + ". Starting from random weights.");
+                    return null;
+                }
+            } catch (IOException ex) {
+                System.err.println("Failed to read " + layoutFile + ". Reason: " + ex.getMessage());
+            }
+        }
+        return loadWeights();
+    }
+
+    /**
+     * Loads the tile weights checkpointed next to the dense weights, if they were saved for the same tiles.
+     *
+     * @return The tile weights, or empty ones if there are none to load
+     */
+    private SparseQFunction loadTiles() {
+        File path = WeightCheckpointer.tilesFile(new File("agent_weights/weights.bin"));
+        if (!path.exists()) {
+            return new SparseQFunction();
+        }
+        try {
+            return SparseQFunction.read(path, tileCoder.getLayout());
+        } catch (IOException ex) {
+            System.err.println("Failed to load tile weights. Reason: " + ex.getMessage());
+        }
+        return new SparseQFunction();
+    }
+
+    /**
+     * Loads the feature statistics checkpointed next to the weights, if they were saved for the same features.
+     *
+     * @return The statistics, or empty ones if there are none to load
+     */
+    private FeatureNormalizer loadNormalizer() {
+        File path = WeightCheckpointer.normalizerFile(new File("agent_weights/weights.bin"));
+        if (!path.exists()) {
+            return new FeatureNormalizer(features.size());
+        }
+        try {
+            return FeatureNormalizer.read(path, features.getLayout());
+        } catch (IOException ex) {
+            System.err.println("Failed to load feature statistics. Reason: " + ex.getMessage());
+        }
+        return new FeatureNormalizer(features.size());
+    }
+
     @Override
     public void savePlayerData(OutputStream outputStream) {
 
@@ -0,0 +1,124 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixed-capacity ring buffer of Q-learning transitions for experience replay.
+ *
+ * A transition is the feature vector of the (s,a) pair a footman acted on, the reward it collected
+ * until its next event, and the feature vectors of every (s',a') it could choose from next, which
+ * are what max Q(s',a') is calculated from when the transition is replayed. A transition with no
+ * next candidates is terminal (the footman died or no enemies were left). Everything is stored in
+ * flat primitive arrays, overwriting the oldest transition once the buffer is full.
+ */
+class ReplayBuffer {
+
+    private final int capacity;
+    private final int numFeatures;
+
+    private final double[] features;
+    private final double[] rewards;
+    private final int[] nextCount;
+    /** Room for maxCandidates next feature vectors per transition, grown if an army gets bigger. */
+    private double[] nextFeatures;
+    private int maxCandidates;
+
+    private int next;
+    private int size;
+
+    private final double[] gradient;
+    /** Q-values of one transition's next feature vectors. */
+    private double[] nextQ = new double[0];
+
+    public ReplayBuffer(int capacity, int numFeatures) {
+        this.capacity = capacity;
+        this.numFeatures = numFeatures;
+        features = new double[capacity * numFeatures];
+        rewards = new double[capacity];
+        nextCount = new int[capacity];
+        maxCandidates = 0;
+        nextFeatures = new double[0];
+        gradient = new double[numFeatures];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Stores a transition, overwriting the oldest one if the buffer is full.
+     *
+     * @param stateFeatures Features of (s,a)
+     * @param reward Reward received between s and s'
+     * @param candidates Buffer holding the features of every (s',a'), back to back
+     * @param candidatesOffset Index of the first candidate feature
+     * @param numCandidates Number of (s',a') pairs, 0 if s' is terminal
+     */
+    public void add(double[] stateFeatures, double reward, double[] candidates, int candidatesOffset, int numCandidates) {
+        if (numCandidates > maxCandidates) {
+            growCandidates(numCandidates);
+        }
+        System.arraycopy(stateFeatures, 0, features, next * numFeatures, numFeatures);
+        rewards[next] = reward;
+        nextCount[next] = numCandidates;
+        if (numCandidates > 0) {
+            System.arraycopy(candidates, candidatesOffset, nextFeatures, next * maxCandidates * numFeatures,
+                    numCandidates * numFeatures);
+        }
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Samples a mini-batch uniformly (with replacement) and applies the average TD gradient of the
+     * batch to the weights in a single step.
+     *
+     * @param tdClip Bound on each transition's TD error in the gradient, 0 for none
+     * @return The mean squared TD error of the batch, before clipping
+     */
+    public double replay(LinearQFunction qFunction, int batchSize, double gamma, double learningRate, double tdClip,
+                         Random random) {
+        if (size == 0) {
+            return 0;
+        }
+        Arrays.fill(gradient, 0);
+        double squaredError = 0;
+        for (int b = 0; b < batchSize; b++) {
+            int i = random.nextInt(size);
+            double target = rewards[i];
+            if (nextCount[i] > 0) {
+                qFunction.values(nextFeatures, i * maxCandidates * numFeatures, nextCount[i], nextQ, 0);
+                double maxQ = Double.NEGATIVE_INFINITY;
+                for (int c = 0; c < nextCount[i]; c++) {
+                    maxQ = Math.max(maxQ, nextQ[c]);
+                }
+                target += gamma * maxQ;
+            }
+            int offset = i * numFeatures;
+            double tdError = target - qFunction.value(features, offset);
+            squaredError += tdError * tdError;
+            if (tdClip > 0) {
+                tdError = Math.max(-tdClip, Math.min(tdClip, tdError));
+            }
+            for (int f = 0; f < numFeatures; f++) {
+                gradient[f] += tdError * features[offset + f];
+            }
+        }
+        qFunction.update(gradient, 1.0 / batchSize, learningRate);
+        return squaredError / batchSize;
+    }
+
+    private void growCandidates(int numCandidates) {
+        double[] grown = new double[capacity * numCandidates * numFeatures];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(nextFeatures, i * maxCandidates * numFeatures, grown, i * numCandidates * numFeatures,
+                    nextCount[i] * numFeatures);
+        }
+        nextFeatures = grown;
+        nextQ = new double[numCandidates];
+        maxCandidates = numCandidates;
+    }
+}
@@ -0,0 +1,315 @@
+package edu.cwru.sepia.agent;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Streaming statistics of the rewards the footmen collect, in a fixed amount of memory.
+ *
+ * Every reward given to a footman at an event goes through add(), which updates in O(1):
+ * <ul>
+ * <li>the running mean and variance over all rewards (Welford's method),</li>
+ * <li>a histogram of fixed-width buckets, from which percentiles are interpolated,</li>
+ * <li>the current episode's sum and count, in total and per footman.</li>
+ * </ul>
+ * Episode averages go into a moving window of the last few episodes, and the window averages make up
+ * the learning curve printTestData prints. The curve holds at most a fixed number of points; once
+ * full, neighbouring points are averaged in pairs and from then on each point covers twice as many
+ * test cycles, so a long run keeps its whole curve at a coarser resolution. Every point keeps the
+ * number of games played before the first cycle it covers, so it stays labelled right either way.
+ *
+ * Nothing grows with the number of episodes. The per-footman sums are indexed by unit ID and grow
+ * only to the largest ID seen, like UnitSnapshot's index.
+ */
+class RewardStats {
+
+    /** Learning curve points kept unless the agent's rewardCurve= option says otherwise. */
+    static final int DEFAULT_CURVE_POINTS = 4096;
+
+    private static final double HISTOGRAM_MIN = -256;
+    private static final double HISTOGRAM_MAX = 256;
+    private static final int HISTOGRAM_BUCKETS = 512;
+
+    // all rewards
+    private long count;
+    private double mean;
+    private double m2;
+    /** buckets[0] counts rewards below HISTOGRAM_MIN, the last bucket those at or above HISTOGRAM_MAX. */
+    private final long[] buckets = new long[HISTOGRAM_BUCKETS + 2];
+
+    // current episode
+    private double episodeSum;
+    private int episodeCount;
+    /** Indexed by unit ID. */
+    private double[] footmanSums = new double[0];
+    private boolean[] hasSum = new boolean[0];
+    private int[] rewarded = new int[16];
+    private int numRewarded;
+
+    // moving window of episode averages
+    private final double[] window;
+    private int windowSize;
+    private int windowNext;
+
+    // learning curve
+    private final double[] curve;
+    private final long[] curveGames;
+    private int curveSize;
+    private int cyclesPerPoint = 1;
+    private double pendingSum;
+    private int pendingCycles;
+    private long pendingGames;
+
+    /**
+     * @param window Number of episode averages the moving average is over
+     * @param curvePoints Most points the learning curve keeps, at least 2
+     */
+    RewardStats(int window, int curvePoints) {
+        if (window < 1) {
+            throw new IllegalArgumentException("The reward window must cover at least one episode, was " + window);
+        }
+        if (curvePoints < 2) {
+            throw new IllegalArgumentException("The learning curve must keep at least 2 points, was " + curvePoints);
+        }
+        this.window = new double[window];
+        curve = new double[curvePoints];
+        curveGames = new long[curvePoints];
+    }
+
+    /**
+     * Starts a new episode's sums.
+     */
+    public void startEpisode() {
+        for (int i = 0; i < numRewarded; i++) {
+            footmanSums[rewarded[i]] = 0;
+            hasSum[rewarded[i]] = false;
+        }
+        numRewarded = 0;
+        episodeSum = 0;
+        episodeCount = 0;
+    }
+
+    /**
+     * Counts one reward a footman collected.
+     */
+    public void add(int footmanId, double reward) {
+        count++;
+        double delta = reward - mean;
+        mean += delta / count;
+        m2 += delta * (reward - mean);
+        buckets[bucket(reward)]++;
+
+        episodeSum += reward;
+        episodeCount++;
+        if (footmanId >= footmanSums.length) {
+            int length = Math.max(footmanId + 1, footmanSums.length * 2);
+            footmanSums = Arrays.copyOf(footmanSums, length);
+            hasSum = Arrays.copyOf(hasSum, length);
+        }
+        if (!hasSum[footmanId]) {
+            hasSum[footmanId] = true;
+            if (numRewarded == rewarded.length) {
+                rewarded = Arrays.copyOf(rewarded, numRewarded * 2);
+            }
+            rewarded[numRewarded++] = footmanId;
+        }
+        footmanSums[footmanId] += reward;
+    }
+
+    private static int bucket(double reward) {
+        if (reward < HISTOGRAM_MIN) {
+            return 0;
+        }
+        if (reward >= HISTOGRAM_MAX) {
+            return HISTOGRAM_BUCKETS + 1;
+        }
+        return 1 + (int) ((reward - HISTOGRAM_MIN) * HISTOGRAM_BUCKETS / (HISTOGRAM_MAX - HISTOGRAM_MIN));
+    }
+
+    /**
+     * @return The number of rewards counted over all episodes
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return The mean of all rewards, NaN before the first
+     */
+    public double mean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return The sample variance of all rewards, NaN before the second
+     */
+    public double variance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    /**
+     * Interpolates a percentile within its histogram bucket. Rewards outside the histogram's range are
+     * reported as its bounds.
+     *
+     * @param p Between 0 and 1
+     * @return The approximate p-th quantile of all rewards, NaN before the first
+     */
+    public double percentile(double p) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double rank = p * count;
+        long below = 0;
+        double width = (HISTOGRAM_MAX - HISTOGRAM_MIN) / HISTOGRAM_BUCKETS;
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == 0 || below + buckets[i] < rank) {
+                below += buckets[i];
+                continue;
+            }
+            if (i == 0) {
+                return HISTOGRAM_MIN;
+            }
+            if (i == buckets.length - 1) {
+                return HISTOGRAM_MAX;
+            }
+            return HISTOGRAM_MIN + (i - 1 + (rank - below) / buckets[i]) * width;
+        }
+        return HISTOGRAM_MAX;
+    }
+
+    /**
+     * @return The sum of the current episode's rewards
+     */
+    public double episodeSum() {
+        return episodeSum;
+    }
+
+    /**
+     * @return The mean of the current episode's rewards, NaN if there were none
+     */
+    public double episodeAverage() {
+        return episodeSum / episodeCount;
+    }
+
+    /**
+     * @return The sum of the rewards the footman collected this episode
+     */
+    public double footmanSum(int footmanId) {
+        return footmanId < footmanSums.length ? footmanSums[footmanId] : 0;
+    }
+
+    /**
+     * Adds an episode average to the moving window, pushing out the oldest once the window is full.
+     */
+    public void addToWindow(double episodeAverage) {
+        if (windowSize < window.length) {
+            windowSize++;
+        }
+        window[windowNext] = episodeAverage;
+        windowNext = (windowNext + 1) % window.length;
+    }
+
+    /**
+     * Summed afresh on each call rather than kept as a running sum, so a NaN average (an episode with
+     * no rewards) only spoils the window until it is pushed out, and no rounding error builds up.
+     *
+     * @return The mean of the episode averages in the window, NaN if it is empty
+     */
+    public double windowAverage() {
+        double sum = 0;
+        for (int i = 0; i < windowSize; i++) {
+            sum += window[i];
+        }
+        return sum / windowSize;
+    }
+
+    /**
+     * Adds the next point of the learning curve, one per cycle of test episodes.
+     *
+     * @param gamesPlayed The number of games played before the cycle, as printTestData labels its points
+     */
+    public void addCurvePoint(double average, long gamesPlayed) {
+        if (pendingCycles == 0) {
+            pendingGames = gamesPlayed;
+        }
+        pendingSum += average;
+        pendingCycles++;
+        if (pendingCycles < cyclesPerPoint) {
+            return;
+        }
+        if (curveSize == curve.length) {
+            for (int i = 0; i < curveSize / 2; i++) {
+                curve[i] = (curve[2 * i] + curve[2 * i + 1]) / 2;
+                curveGames[i] = curveGames[2 * i];
+            }
+            if (curveSize % 2 == 1) {
+                curve[curveSize / 2] = curve[curveSize - 1];
+                curveGames[curveSize / 2] = curveGames[curveSize - 1];
+            }
+            curveSize = (curveSize + 1) / 2;
+            cyclesPerPoint *= 2;
+            // the new point now counts for half a merged point
+            if (pendingCycles < cyclesPerPoint) {
+                return;
+            }
+        }
+        curve[curveSize] = pendingSum / pendingCycles;
+        curveGames[curveSize] = pendingGames;
+        curveSize++;
+        pendingSum = 0;
+        pendingCycles = 0;
+    }
+
+    /**
+     * @return The number of test cycles each point of the curve averages, 1 until the curve has filled
+     */
+    public int cyclesPerPoint() {
+        return cyclesPerPoint;
+    }
+
+    /**
+     * @return A read-only view of the learning curve, as printTestData takes it
+     */
+    public List<Double> curve() {
+        return new Curve();
+    }
+
+    /**
+     * @return A read-only view of the number of games played before each point of the learning curve
+     */
+    public List<Long> curveGamesPlayed() {
+        return new CurveGames();
+    }
+
+    private class Curve extends AbstractList<Double> implements RandomAccess {
+        @Override
+        public Double get(int index) {
+            if (index >= curveSize) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + curveSize);
+            }
+            return curve[index];
+        }
+
+        @Override
+        public int size() {
+            return curveSize;
+        }
+    }
+
+    private class CurveGames extends AbstractList<Long> implements RandomAccess {
+        @Override
+        public Long get(int index) {
+            if (index >= curveSize) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + curveSize);
+            }
+            return curveGames[index];
+        }
+
+        @Override
+        public int size() {
+            return curveSize;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Linear Q-function over sparse binary features (tiles, see TileCoder), Q = the sum of the weights
+ * of the active tiles.
+ *
+ * Weights live in an open addressing hash table keyed by the 64 bit tile, with linear probing over
+ * parallel primitive arrays. Evaluating or updating touches only the active tiles, and tiles that were
+ * never updated have weight 0 without taking up a slot, so the space of possible tiles can be far
+ * larger than the table.
+ *
+ * Big-endian file layout, written atomically like WeightCheckpointer's checkpoints:
+ *
+ * <pre>
+ * int     magic "RLQT"
+ * int     format version
+ * short   length of the tile layout, then the layout as UTF-8 (TileCoder.getLayout())
+ * int     number of tiles, then each tile as a long followed by its weight as a double
+ * long    CRC32 of everything above
+ * </pre>
+ */
+class SparseQFunction {
+
+    /** Marks an unused slot in a tile list, and an empty slot in the table. Never a real tile. */
+    static final long NO_TILE = 0;
+
+    private static final int MAGIC = 0x524C5154;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private long[] keys = new long[1024];
+    private double[] weights = new double[1024];
+    private int size;
+
+    /**
+     * @return The number of tiles with a weight
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The sum of the weights of the tiles tiles[offset] to tiles[offset + count - 1]
+     */
+    public double value(long[] tiles, int offset, int count) {
+        double sum = 0;
+        for (int i = offset; i < offset + count; i++) {
+            if (tiles[i] != NO_TILE) {
+                int slot = find(tiles[i]);
+                if (slot >= 0) {
+                    sum += weights[slot];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Gradient step w_i += learningRate * tdError for every active tile, adding the tiles that have no
+     * weight yet.
+     */
+    public void update(long[] tiles, int offset, int count, double tdError, double learningRate) {
+        double step = learningRate * tdError;
+        for (int i = offset; i < offset + count; i++) {
+            if (tiles[i] != NO_TILE) {
+                // insert may grow the table, so look the slot up before reading the weights array
+                int slot = insert(tiles[i]);
+                weights[slot] += step;
+            }
+        }
+    }
+
+    public double get(long tile) {
+        int slot = find(tile);
+        return slot < 0 ? 0 : weights[slot];
+    }
+
+    public SparseQFunction copy() {
+        SparseQFunction copy = new SparseQFunction();
+        copy.keys = keys.clone();
+        copy.weights = weights.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    private static int hash(long tile, int mask) {
+        return (int) (tile ^ (tile >>> 32)) & mask;
+    }
+
+    private int find(long tile) {
+        int mask = keys.length - 1;
+        for (int slot = hash(tile, mask); keys[slot] != NO_TILE; slot = (slot + 1) & mask) {
+            if (keys[slot] == tile) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(long tile) {
+        int mask = keys.length - 1;
+        int slot = hash(tile, mask);
+        while (keys[slot] != NO_TILE) {
+            if (keys[slot] == tile) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return insert(tile);
+        }
+        keys[slot] = tile;
+        size++;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        double[] oldWeights = weights;
+        keys = new long[capacity];
+        weights = new double[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == NO_TILE) {
+                continue;
+            }
+            int slot = hash(oldKeys[i], mask);
+            while (keys[slot] != NO_TILE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            weights[slot] = oldWeights[i];
+        }
+    }
+
+    /**
+     * Atomically replaces the file with the tile weights.
+     */
+    public static void write(File file, String layout, SparseQFunction q) throws IOException {
+        byte[] layoutBytes = layout.getBytes(UTF8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 2 + layoutBytes.length + 4 + 16 * q.size + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putShort((short) layoutBytes.length);
+        buffer.put(layoutBytes);
+        buffer.putInt(q.size);
+        for (int i = 0; i < q.keys.length; i++) {
+            if (q.keys[i] != NO_TILE) {
+                buffer.putLong(q.keys[i]);
+                buffer.putDouble(q.weights[i]);
+            }
+        }
+        WeightCheckpointer.writeAtomically(file, buffer);
+    }
+
+    /**
+     * Reads tile weights written by write.
+     *
+     * @param layout The layout of the tile coder the weights are for
+     * @throws IOException If the file is missing, truncated, of another format version, for another
+     * tile layout or fails its checksum
+     */
+    public static SparseQFunction read(File file, String layout) throws IOException {
+        ByteBuffer buffer = WeightCheckpointer.map(file);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a tile weight file.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has tile weight format version " + version + ", expected " + VERSION + ".");
+            }
+            byte[] layoutBytes = new byte[buffer.getShort()];
+            buffer.get(layoutBytes);
+            String saved = new String(layoutBytes, UTF8);
+            if (!saved.equals(layout)) {
+                throw new IOException(file + " holds tiles " + saved + ", expected " + layout + ".");
+            }
+            int count = buffer.getInt();
+            SparseQFunction q = new SparseQFunction();
+            for (int i = 0; i < count; i++) {
+                int slot = q.insert(buffer.getLong());
+                q.weights[slot] = buffer.getDouble();
+            }
+            return q;
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException or a negative array size from a truncated file
+            throw new IOException(file + " is truncated or corrupt.", ex);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Decides when an episode has stopped going anywhere, so it can be ended instead of running to the
+ * simulator's turn limit.
+ *
+ * Progress is any damage dealt or unit killed, by either side. An episode is a stalemate once no
+ * progress has been made for idleTurns turns, or once our footmen's actions have failed failures times
+ * since the last progress, e.g. compound attacks that keep failing because the target cannot be
+ * reached. Either threshold can be turned off with 0. Once declared, a stalemate holds until the next
+ * episode or resume().
+ */
+class StalemateDetector {
+
+    /** Thresholds the launchers whose environments end stalemated episodes turn detection on with. */
+    static final int DEFAULT_IDLE_TURNS = 500;
+    static final int DEFAULT_FAILURES = 100;
+
+    private final int idleTurns;
+    private final int failures;
+
+    private int lastProgressTurn;
+    private int failuresSinceProgress;
+    private boolean stalemate;
+
+    /**
+     * @param idleTurns Turns without progress that make a stalemate, 0 for no limit
+     * @param failures Failed actions without progress that make a stalemate, 0 for no limit
+     */
+    StalemateDetector(int idleTurns, int failures) {
+        if (idleTurns < 0 || failures < 0) {
+            throw new IllegalArgumentException("Stalemate thresholds cannot be negative, were " + idleTurns + " turns and " + failures + " failures");
+        }
+        this.idleTurns = idleTurns;
+        this.failures = failures;
+    }
+
+    public void startEpisode() {
+        resume(0);
+    }
+
+    /**
+     * Clears a declared stalemate and counts from the given turn as if it had made progress, for
+     * runners that cannot end an episode early.
+     */
+    public void resume(int turn) {
+        lastProgressTurn = turn;
+        failuresSinceProgress = 0;
+        stalemate = false;
+    }
+
+    /**
+     * Counts what happened on the last turn.
+     *
+     * @param turn The current turn number
+     * @param progress True if any unit was damaged or killed on the last turn
+     * @param failedActions Number of our footmen's actions that failed on the last turn
+     * @return True if the episode is a stalemate
+     */
+    public boolean turn(int turn, boolean progress, int failedActions) {
+        if (progress) {
+            lastProgressTurn = turn;
+            failuresSinceProgress = 0;
+        } else {
+            failuresSinceProgress += failedActions;
+        }
+        if ((idleTurns > 0 && turn - lastProgressTurn >= idleTurns)
+                || (failures > 0 && failuresSinceProgress >= failures)) {
+            stalemate = true;
+        }
+        return stalemate;
+    }
+
+    public boolean isStalemate() {
+        return stalemate;
+    }
+}
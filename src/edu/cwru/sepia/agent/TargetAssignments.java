@@ -0,0 +1,161 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Which enemy each footman was ordered to attack, indexed both ways by unit ID.
+ *
+ * attacker -> target is a plain array lookup. target -> attackers is an intrusive doubly linked
+ * list threaded through per-attacker next/prev arrays, so assigning, reassigning and removing a
+ * footman are all O(1), and walking the attackers of a target costs only the number of attackers.
+ * A footman has at most one target at a time; assigning a new one moves it off the old one.
+ *
+ * Iterate over the attackers of a target with:
+ *
+ * <pre>
+ * for (int a = assignments.firstAttacker(target); a != TargetAssignments.NONE; a = assignments.nextAttacker(a))
+ * </pre>
+ */
+class TargetAssignments {
+
+    public static final int NONE = -1;
+
+    /** Indexed by attacker ID. */
+    private int[] targetOf = new int[0];
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+
+    /** Indexed by target ID. */
+    private int[] head = new int[0];
+    private int[] count = new int[0];
+
+    /**
+     * @return The enemy the footman is attacking, or NONE
+     */
+    public int targetOf(int attackerId) {
+        return attackerId >= 0 && attackerId < targetOf.length ? targetOf[attackerId] : NONE;
+    }
+
+    public boolean isAttacking(int attackerId, int targetId) {
+        return targetId != NONE && targetOf(attackerId) == targetId;
+    }
+
+    /**
+     * @return The number of footmen assigned to the target
+     */
+    public int numAttackers(int targetId) {
+        return targetId >= 0 && targetId < count.length ? count[targetId] : 0;
+    }
+
+    /**
+     * @return The first footman assigned to the target, or NONE
+     */
+    public int firstAttacker(int targetId) {
+        return targetId >= 0 && targetId < head.length ? head[targetId] : NONE;
+    }
+
+    /**
+     * @return The footman after this one on the same target, or NONE
+     */
+    public int nextAttacker(int attackerId) {
+        return next[attackerId];
+    }
+
+    /**
+     * Points the footman at a new target, taking it off its old one.
+     */
+    public void assign(int attackerId, int targetId) {
+        ensureAttacker(attackerId);
+        ensureTarget(targetId);
+        if (targetOf[attackerId] == targetId) {
+            return;
+        }
+        unassign(attackerId);
+        targetOf[attackerId] = targetId;
+        prev[attackerId] = NONE;
+        next[attackerId] = head[targetId];
+        if (head[targetId] != NONE) {
+            prev[head[targetId]] = attackerId;
+        }
+        head[targetId] = attackerId;
+        count[targetId]++;
+    }
+
+    /**
+     * Removes the footman from its target, e.g. when it dies.
+     */
+    public void unassign(int attackerId) {
+        int targetId = targetOf(attackerId);
+        if (targetId == NONE) {
+            return;
+        }
+        if (prev[attackerId] != NONE) {
+            next[prev[attackerId]] = next[attackerId];
+        } else {
+            head[targetId] = next[attackerId];
+        }
+        if (next[attackerId] != NONE) {
+            prev[next[attackerId]] = prev[attackerId];
+        }
+        targetOf[attackerId] = NONE;
+        next[attackerId] = NONE;
+        prev[attackerId] = NONE;
+        count[targetId]--;
+    }
+
+    /**
+     * Unassigns every footman attacking the target, e.g. when it dies.
+     */
+    public void removeTarget(int targetId) {
+        int attackerId = firstAttacker(targetId);
+        while (attackerId != NONE) {
+            int following = next[attackerId];
+            targetOf[attackerId] = NONE;
+            next[attackerId] = NONE;
+            prev[attackerId] = NONE;
+            attackerId = following;
+        }
+        if (targetId >= 0 && targetId < head.length) {
+            head[targetId] = NONE;
+            count[targetId] = 0;
+        }
+    }
+
+    /**
+     * Forgets every assignment, for the start of an episode.
+     */
+    public void clear() {
+        Arrays.fill(targetOf, NONE);
+        Arrays.fill(next, NONE);
+        Arrays.fill(prev, NONE);
+        Arrays.fill(head, NONE);
+        Arrays.fill(count, 0);
+    }
+
+    private void ensureAttacker(int attackerId) {
+        if (attackerId < targetOf.length) {
+            return;
+        }
+        int oldLength = targetOf.length;
+        int length = Math.max(attackerId + 1, oldLength * 2);
+        targetOf = grow(targetOf, length);
+        next = grow(next, length);
+        prev = grow(prev, length);
+    }
+
+    private void ensureTarget(int targetId) {
+        if (targetId < head.length) {
+            return;
+        }
+        int length = Math.max(targetId + 1, head.length * 2);
+        head = grow(head, length);
+        count = Arrays.copyOf(count, length);
+    }
+
+    private static int[] grow(int[] array, int length) {
+        int oldLength = array.length;
+        array = Arrays.copyOf(array, length);
+        Arrays.fill(array, oldLength, length, NONE);
+        return array;
+    }
+}
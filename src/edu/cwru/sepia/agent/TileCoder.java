@@ -0,0 +1,113 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Tile coding of an (attacker, defender) pair into hashed sparse features, for SparseQFunction.
+ *
+ * The pair is described by the defender's position relative to the attacker, the attacker's share of
+ * the pair's health, the enemies next to the attacker and our footmen next to the defender. Each group
+ * of these below is covered by tilings overlapping grids, every one shifted by a different fraction of a
+ * tile, and the pair activates exactly one tile in each grid. A tile is identified by a 64 bit hash of
+ * its group, tiling and coordinates, so the space of possible tiles is huge but only tiles that are
+ * ever visited take up weights. A pair has getActiveTiles() tiles, or NO_TILE in every slot if either
+ * unit is dead.
+ */
+class TileCoder {
+
+    /** The FeatureContext inputs the tiles are computed from. */
+    static final int INPUTS = FeatureContext.POSITIONS | FeatureContext.HEALTH | FeatureContext.NEIGHBOURHOOD;
+
+    /** Relative positions are clamped to this many cells in each direction. */
+    private static final int MAX_OFFSET = 12;
+
+    private static final int GROUPS = 3;
+    /** position: (dx, dy) in tiles of 2 cells */
+    private static final int POSITION = 0;
+    /** position and health: (dx, dy, hpRatio) in tiles of 3 cells and a quarter of the health */
+    private static final int POSITION_HEALTH = 1;
+    /** crowd: (enemies next to the attacker, our footmen next to the defender, hpRatio) */
+    private static final int CROWD = 2;
+
+    private final int tilings;
+
+    /**
+     * @param tilings Number of overlapping grids per group
+     */
+    TileCoder(int tilings) {
+        if (tilings < 1) {
+            throw new IllegalArgumentException("Tile coding needs at least one tiling, was " + tilings);
+        }
+        this.tilings = tilings;
+    }
+
+    /**
+     * @return The number of tiles every pair activates
+     */
+    public int getActiveTiles() {
+        return GROUPS * tilings;
+    }
+
+    /**
+     * @return A description of the tiles, saved with their weights so they are only loaded into a
+     * coder producing the same tiles
+     */
+    public String getLayout() {
+        return "tiles=" + tilings + ";position,positionHealth,crowd";
+    }
+
+    /**
+     * Writes the tiles of the pair loaded into the context into tiles[offset] to
+     * tiles[offset + getActiveTiles() - 1].
+     *
+     * @param context Context with INPUTS prepared and the pair loaded
+     */
+    public void encode(FeatureContext context, long[] tiles, int offset) {
+        if (!context.bothAlive() || !context.grid.contains(context.attackerId) || !context.grid.contains(context.defenderId)) {
+            for (int i = 0; i < getActiveTiles(); i++) {
+                tiles[offset + i] = SparseQFunction.NO_TILE;
+            }
+            return;
+        }
+        double dx = clamp(context.defenderX - context.attackerX);
+        double dy = clamp(context.defenderY - context.attackerY);
+        double hpRatio = context.attackerHP + context.defenderHP == 0 ? 0.5
+                : context.attackerHP / (context.attackerHP + context.defenderHP);
+        double enemiesNearAttacker = context.grid.countWithin(context.attackerX, context.attackerY, 1, true);
+        double friendsNearDefender = context.grid.countWithin(context.defenderX, context.defenderY, 1, false);
+
+        for (int t = 0; t < tilings; t++) {
+            tiles[offset++] = key(POSITION, t, tile(dx, 2, t, 1), tile(dy, 2, t, 3), 0);
+            tiles[offset++] = key(POSITION_HEALTH, t, tile(dx, 3, t, 1), tile(dy, 3, t, 3), tile(hpRatio, 0.25, t, 5));
+            tiles[offset++] = key(CROWD, t, tile(enemiesNearAttacker, 2, t, 1), tile(friendsNearDefender, 2, t, 3),
+                    tile(hpRatio, 0.25, t, 5));
+        }
+    }
+
+    private static double clamp(int offset) {
+        return Math.max(-MAX_OFFSET, Math.min(MAX_OFFSET, offset));
+    }
+
+    /**
+     * Coordinate of the tile holding the value in one dimension of one tiling. Tiling t is shifted by
+     * t * stride / tilings of a tile, with a different odd stride per dimension, so the tilings do not
+     * all line up along the diagonal.
+     */
+    private int tile(double value, double width, int tiling, int stride) {
+        double shift = (double) ((tiling * stride) % tilings) / tilings;
+        return (int) Math.floor(value / width + shift);
+    }
+
+    private static long key(int group, int tiling, int a, int b, int c) {
+        long h = group;
+        h = h * 0x9E3779B97F4A7C15L + tiling;
+        h = h * 0x9E3779B97F4A7C15L + a;
+        h = h * 0x9E3779B97F4A7C15L + b;
+        h = h * 0x9E3779B97F4A7C15L + c;
+        // finalizer from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == SparseQFunction.NO_TILE ? 1 : h;
+    }
+}
@@ -0,0 +1,199 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a trace written by TraceRecorder, one record at a time, through a memory mapping of the file.
+ *
+ * After next() returns a record type, the fields of that record are in this reader's fields and
+ * arrays until the next call. The arrays are reused between records and only grow, so reading a
+ * trace does not allocate per turn. A record cut short at the end of the file, as left by an agent
+ * that was killed mid-episode, ends the trace as if the file stopped before it.
+ */
+class TraceReader {
+
+    /** Returned by next() once there are no more records. */
+    static final byte END_OF_TRACE = 0;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int playernum;
+    private boolean truncated;
+
+    // EPISODE
+    int episode;
+    boolean exploration;
+    int xExtent;
+    int yExtent;
+
+    // TURN
+    int turn;
+    int numDamage;
+    int[] damageAttackers = new int[16];
+    int[] damageDefenders = new int[16];
+    int[] damageDefenderPlayers = new int[16];
+    int[] damage = new int[16];
+    int numDeaths;
+    int[] deadUnits = new int[16];
+    int[] deadPlayers = new int[16];
+    int numRewards;
+    int[] rewardIds = new int[16];
+    double[] rewards = new double[16];
+    int numCommands;
+    int[] commandIds = new int[16];
+    int[] commandTargets = new int[16];
+    boolean[] commandDecisions = new boolean[16];
+    /** True if units holds this turn's snapshot. */
+    boolean hasUnits;
+    final UnitSnapshot units = new UnitSnapshot();
+
+    // END
+    boolean won;
+    int turns;
+
+    /**
+     * @throws IOException If the file is missing, too large to map or not a trace of this format version
+     */
+    public TraceReader(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map, record fewer episodes per trace.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+        if (buffer.remaining() < 12 || buffer.getInt() != TraceRecorder.MAGIC) {
+            throw new IOException(file + " is not an episode trace.");
+        }
+        int version = buffer.getInt();
+        if (version != TraceRecorder.VERSION) {
+            throw new IOException(file + " has trace format version " + version + ", expected " + TraceRecorder.VERSION + ".");
+        }
+        playernum = buffer.getInt();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The player the recording agent played as
+     */
+    public int getPlayernum() {
+        return playernum;
+    }
+
+    /**
+     * @return True if the trace ended in a record that was cut short
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return Its type, TraceRecorder.EPISODE, TURN or END, or END_OF_TRACE
+     * @throws IOException If the record has an unknown type
+     */
+    public byte next() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return END_OF_TRACE;
+        }
+        int start = buffer.position();
+        try {
+            byte type = buffer.get();
+            switch (type) {
+                case TraceRecorder.EPISODE:
+                    episode = buffer.getInt();
+                    exploration = buffer.get() != 0;
+                    xExtent = buffer.getShort();
+                    yExtent = buffer.getShort();
+                    break;
+                case TraceRecorder.TURN:
+                    readTurn();
+                    break;
+                case TraceRecorder.END:
+                    won = buffer.get() != 0;
+                    turns = buffer.getInt();
+                    break;
+                default:
+                    throw new IOException(file + " has an unknown record type " + type + " at byte " + start + ".");
+            }
+            return type;
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException from a record cut short by the end of the file
+            buffer.position(buffer.limit());
+            truncated = true;
+            return END_OF_TRACE;
+        }
+    }
+
+    private void readTurn() {
+        turn = buffer.getInt();
+        numDamage = buffer.getShort() & 0xFFFF;
+        if (damage.length < numDamage) {
+            damageAttackers = Arrays.copyOf(damageAttackers, numDamage * 2);
+            damageDefenders = Arrays.copyOf(damageDefenders, numDamage * 2);
+            damageDefenderPlayers = Arrays.copyOf(damageDefenderPlayers, numDamage * 2);
+            damage = Arrays.copyOf(damage, numDamage * 2);
+        }
+        for (int i = 0; i < numDamage; i++) {
+            damageAttackers[i] = buffer.getInt();
+            damageDefenders[i] = buffer.getInt();
+            damageDefenderPlayers[i] = buffer.get();
+            damage[i] = buffer.getShort();
+        }
+        numDeaths = buffer.getShort() & 0xFFFF;
+        if (deadUnits.length < numDeaths) {
+            deadUnits = Arrays.copyOf(deadUnits, numDeaths * 2);
+            deadPlayers = Arrays.copyOf(deadPlayers, numDeaths * 2);
+        }
+        for (int i = 0; i < numDeaths; i++) {
+            deadUnits[i] = buffer.getInt();
+            deadPlayers[i] = buffer.get();
+        }
+        numRewards = buffer.getShort() & 0xFFFF;
+        if (rewardIds.length < numRewards) {
+            rewardIds = Arrays.copyOf(rewardIds, numRewards * 2);
+            rewards = Arrays.copyOf(rewards, numRewards * 2);
+        }
+        for (int i = 0; i < numRewards; i++) {
+            rewardIds[i] = buffer.getInt();
+            rewards[i] = buffer.getDouble();
+        }
+        numCommands = buffer.getShort() & 0xFFFF;
+        if (commandIds.length < numCommands) {
+            commandIds = Arrays.copyOf(commandIds, numCommands * 2);
+            commandTargets = Arrays.copyOf(commandTargets, numCommands * 2);
+            commandDecisions = Arrays.copyOf(commandDecisions, numCommands * 2);
+        }
+        for (int i = 0; i < numCommands; i++) {
+            commandIds[i] = buffer.getInt();
+            commandTargets[i] = buffer.getInt();
+            commandDecisions[i] = buffer.get() != 0;
+        }
+        hasUnits = buffer.get() != 0;
+        if (hasUnits) {
+            units.clear(turn, xExtent, yExtent);
+            int numUnits = buffer.getShort() & 0xFFFF;
+            for (int i = 0; i < numUnits; i++) {
+                int id = buffer.getInt();
+                int owner = buffer.get();
+                int x = buffer.getShort();
+                int y = buffer.getShort();
+                int hp = buffer.getShort();
+                units.add(id, x, y, hp, owner);
+            }
+        }
+    }
+}
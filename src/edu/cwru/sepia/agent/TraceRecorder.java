@@ -0,0 +1,257 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records what the agent saw and did in each episode to an append-only binary trace file, so the
+ * episodes can be trained on again by OfflineTrainer without the simulator.
+ *
+ * Big-endian layout of a trace file:
+ *
+ * <pre>
+ * int     magic "RLTR"
+ * int     format version
+ * int     the recording agent's player number
+ * then any number of records, each starting with its type byte:
+ *
+ * EPISODE int episode number, byte 1 if it was an exploration episode, short x extent, short y extent
+ * TURN    int turn number
+ *         short number of damage logs of the previous turn, then per log
+ *               int attacker, int defender, byte defender's player, short damage
+ *         short number of death logs of the previous turn, then per log int unit, byte player
+ *         short number of footmen rewarded for an event this turn, then per footman
+ *               int footman, double reward collected since its last decision
+ *         short number of commands issued this turn, then per command
+ *               int footman, int target, byte 1 if it is a new decision rather than a repeated attack
+ *         byte  1 if a unit snapshot follows, then
+ *               short number of living units, then per unit int ID, byte player, short x, short y, short HP
+ * END     byte 1 if we won, int number of turns
+ * </pre>
+ *
+ * Turns with no damage, deaths, rewards or commands are not written at all, and units are only
+ * written on turns with rewards or commands, since those are the only turns whose features the
+ * learner needs. Records are buffered and flushed at the end of every episode.
+ */
+class TraceRecorder {
+
+    static final int MAGIC = 0x524C5452;
+    static final int VERSION = 1;
+
+    static final byte EPISODE = 1;
+    static final byte TURN = 2;
+    static final byte END = 3;
+
+    private final File file;
+    private DataOutputStream out;
+
+    private State.StateView stateView;
+    private History.HistoryView historyView;
+
+    private int numRewards;
+    private int[] rewardIds = new int[16];
+    private double[] rewards = new double[16];
+
+    /** Indexed by unit ID, the turn the footman last made a new decision on. */
+    private int[] decidedOn = new int[0];
+
+    /**
+     * @param playernum The recording agent's player
+     */
+    public TraceRecorder(File file, int playernum) throws IOException {
+        this.file = file;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        boolean empty = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(playernum);
+        }
+    }
+
+    /**
+     * @return A new, uniquely named trace file in the directory
+     */
+    public static File newTraceFile(File directory) throws IOException {
+        directory.mkdirs();
+        return File.createTempFile("episodes-", ".trace", directory);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void startEpisode(int episode, boolean exploration, State.StateView stateView) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EPISODE);
+            out.writeInt(episode);
+            out.writeByte(exploration ? 1 : 0);
+            out.writeShort(stateView.getXExtent());
+            out.writeShort(stateView.getYExtent());
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * Starts collecting the rewards and decisions of a turn.
+     */
+    public void beginTurn(State.StateView stateView, History.HistoryView historyView) {
+        this.stateView = stateView;
+        this.historyView = historyView;
+        numRewards = 0;
+    }
+
+    /**
+     * The reward a footman collected since its last decision, given when it has an event.
+     */
+    public void reward(int footmanId, double reward) {
+        if (numRewards == rewardIds.length) {
+            rewardIds = Arrays.copyOf(rewardIds, numRewards * 2);
+            rewards = Arrays.copyOf(rewards, numRewards * 2);
+        }
+        rewardIds[numRewards] = footmanId;
+        rewards[numRewards] = reward;
+        numRewards++;
+    }
+
+    /**
+     * Marks the footman's command this turn as a new decision.
+     */
+    public void decision(int footmanId) {
+        if (footmanId >= decidedOn.length) {
+            int oldLength = decidedOn.length;
+            decidedOn = Arrays.copyOf(decidedOn, Math.max(footmanId + 1, oldLength * 2));
+            Arrays.fill(decidedOn, oldLength, decidedOn.length, -1);
+        }
+        decidedOn[footmanId] = stateView.getTurnNumber();
+    }
+
+    /**
+     * Writes the turn, if anything happened on it.
+     *
+     * @param commands The actions the agent is returning for the turn
+     * @param units The units of the turn
+     */
+    public void endTurn(Map<Integer, Action> commands, UnitSnapshot units) {
+        if (out == null) {
+            return;
+        }
+        int turn = stateView.getTurnNumber();
+        List<DamageLog> damageLogs = null;
+        List<DeathLog> deathLogs = null;
+        if (turn > 0) {
+            damageLogs = historyView.getDamageLogs(turn - 1);
+            deathLogs = historyView.getDeathLogs(turn - 1);
+        }
+        boolean needsUnits = numRewards > 0 || !commands.isEmpty();
+        if (!needsUnits && (damageLogs == null || damageLogs.isEmpty()) && (deathLogs == null || deathLogs.isEmpty())) {
+            return;
+        }
+        try {
+            out.writeByte(TURN);
+            out.writeInt(turn);
+            out.writeShort(damageLogs == null ? 0 : damageLogs.size());
+            if (damageLogs != null) {
+                for (DamageLog damageLog : damageLogs) {
+                    out.writeInt(damageLog.getAttackerID());
+                    out.writeInt(damageLog.getDefenderID());
+                    out.writeByte(damageLog.getDefenderController());
+                    out.writeShort(damageLog.getDamage());
+                }
+            }
+            out.writeShort(deathLogs == null ? 0 : deathLogs.size());
+            if (deathLogs != null) {
+                for (DeathLog deathLog : deathLogs) {
+                    out.writeInt(deathLog.getDeadUnitID());
+                    out.writeByte(deathLog.getController());
+                }
+            }
+            out.writeShort(numRewards);
+            for (int i = 0; i < numRewards; i++) {
+                out.writeInt(rewardIds[i]);
+                out.writeDouble(rewards[i]);
+            }
+            out.writeShort(commands.size());
+            for (Map.Entry<Integer, Action> command : commands.entrySet()) {
+                int footmanId = command.getKey();
+                out.writeInt(footmanId);
+                Action action = command.getValue();
+                out.writeInt(action instanceof TargetedAction ? ((TargetedAction) action).getTargetId() : -1);
+                out.writeByte(footmanId < decidedOn.length && decidedOn[footmanId] == turn ? 1 : 0);
+            }
+            out.writeByte(needsUnits ? 1 : 0);
+            if (needsUnits) {
+                out.writeShort(units.size());
+                for (int i = 0; i < units.size(); i++) {
+                    out.writeInt(units.id(i));
+                    out.writeByte(units.owner(i));
+                    out.writeShort(units.x(i));
+                    out.writeShort(units.y(i));
+                    out.writeShort(units.hp(i));
+                }
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * Ends the episode and flushes everything recorded so far to the file.
+     */
+    public void endEpisode(boolean won, int turns) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(END);
+            out.writeByte(won ? 1 : 0);
+            out.writeInt(turns);
+            out.flush();
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    public void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close episode trace " + file + ". Reason: " + ex.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Stops recording, keeping the episodes already flushed.
+     */
+    private void failed(IOException ex) {
+        System.err.println("Failed to record episode trace " + file + ", recording stopped. Reason: " + ex.getMessage());
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+        out = null;
+    }
+}
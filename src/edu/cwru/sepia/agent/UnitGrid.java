@@ -0,0 +1,378 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Occupancy grid over the map for the Chebyshev distance and path features.
+ *
+ * Each cell counts the friendly and enemy footmen standing on it. The grid is brought up to date
+ * once per turn from the turn's UnitSnapshot, and only the units that moved, died or appeared since
+ * the last update touch it. Neighbourhood counts then only look at the (2r+1)^2 cells around a unit
+ * instead of every unit on the map, and the distance from a footman to its nearest enemy is found by
+ * searching outwards ring by ring and cached for the rest of the turn.
+ *
+ * With trackPaths() the grid also keeps a DistanceFields of the walking distance to every enemy,
+ * refreshed by each update from the cells that changed in it.
+ */
+class UnitGrid {
+
+    private static final int NONE = -1;
+
+    private int xExtent;
+    private int yExtent;
+    private int turn = -1;
+
+    private int[] friendlyCount = new int[0];
+    private int[] enemyCount = new int[0];
+
+    /** Indexed by unit ID. */
+    private int[] cellOf = new int[0];
+    private boolean[] isEnemy = new boolean[0];
+    private int[] seenStamp = new int[0];
+    private int[] nearestEnemy = new int[0];
+    private int[] nearestStamp = new int[0];
+
+    private int[] tracked = new int[0];
+    private int numTracked;
+    private int stamp;
+
+    /** Cells a unit entered or left during the last update. */
+    private int[] changed = new int[16];
+    private int numChanged;
+
+    /** Null unless trackPaths() was called. */
+    private DistanceFields paths;
+    private int[] nearestPath = new int[0];
+    private int[] nearestPathStamp = new int[0];
+
+    /**
+     * @return True if the grid was updated on the given turn
+     */
+    public boolean isValidFor(int turn) {
+        return this.turn == turn;
+    }
+
+    /**
+     * Forces the next update to happen even if the turn number has not changed, e.g. when a new
+     * episode starts.
+     */
+    public void invalidate() {
+        turn = -1;
+    }
+
+    /**
+     * Keeps distance fields of the given radius for pathDistance and isReachable from the next update on.
+     */
+    public void trackPaths(int radius) {
+        paths = new DistanceFields(radius);
+    }
+
+    /**
+     * Moves every unit that changed position since the last update and drops the ones that are no
+     * longer alive.
+     *
+     * @param units The units of the turn
+     * @param playernum The agent's player. Every other player's units are enemies.
+     * @return The number of units whose cell changed
+     */
+    public int update(UnitSnapshot units, int playernum) {
+        if (units.getXExtent() != xExtent || units.getYExtent() != yExtent) {
+            resize(units.getXExtent(), units.getYExtent());
+        }
+        stamp++;
+        numChanged = 0;
+        int moved = 0;
+        for (int i = 0; i < units.size(); i++) {
+            if (place(units.id(i), units.x(i), units.y(i), units.owner(i) != playernum)) {
+                moved++;
+            }
+        }
+        moved += dropUnseen(units.getTurn());
+        if (paths != null) {
+            paths.refresh(this);
+        }
+        return moved;
+    }
+
+    /**
+     * Drops the units that were not placed by the update in progress.
+     *
+     * @return The number of units dropped
+     */
+    private int dropUnseen(int turn) {
+        int moved = 0;
+        int kept = 0;
+        for (int i = 0; i < numTracked; i++) {
+            int id = tracked[i];
+            if (seenStamp[id] == stamp) {
+                tracked[kept++] = id;
+            } else {
+                counts(id)[cellOf[id]]--;
+                changed(cellOf[id]);
+                cellOf[id] = NONE;
+                moved++;
+            }
+        }
+        numTracked = kept;
+        this.turn = turn;
+        return moved;
+    }
+
+    public boolean contains(int unitId) {
+        return unitId >= 0 && unitId < cellOf.length && cellOf[unitId] != NONE;
+    }
+
+    public int getX(int unitId) {
+        return cellOf[unitId] % xExtent;
+    }
+
+    public int getY(int unitId) {
+        return cellOf[unitId] / xExtent;
+    }
+
+    public int chebyshevDistance(int unitA, int unitB) {
+        return Math.max(Math.abs(getX(unitA) - getX(unitB)), Math.abs(getY(unitA) - getY(unitB)));
+    }
+
+    /**
+     * Counts the units of one side within Chebyshev distance radius of (x, y), including (x, y).
+     */
+    public int countWithin(int x, int y, int radius, boolean enemies) {
+        int[] counts = enemies ? enemyCount : friendlyCount;
+        int minX = Math.max(0, x - radius);
+        int maxX = Math.min(xExtent - 1, x + radius);
+        int minY = Math.max(0, y - radius);
+        int maxY = Math.min(yExtent - 1, y + radius);
+        int count = 0;
+        for (int cy = minY; cy <= maxY; cy++) {
+            int row = cy * xExtent;
+            for (int cx = minX; cx <= maxX; cx++) {
+                count += counts[row + cx];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The Chebyshev distance from the unit to the nearest enemy footman, or
+     * Integer.MAX_VALUE if there are none left
+     */
+    public int nearestEnemyDistance(int unitId) {
+        if (nearestStamp[unitId] == stamp) {
+            return nearestEnemy[unitId];
+        }
+        int x = getX(unitId);
+        int y = getY(unitId);
+        int distance = Integer.MAX_VALUE;
+        int maxRadius = Math.max(xExtent, yExtent);
+        for (int r = 0; r < maxRadius; r++) {
+            if (ringHasEnemy(x, y, r)) {
+                distance = r;
+                break;
+            }
+        }
+        nearestEnemy[unitId] = distance;
+        nearestStamp[unitId] = stamp;
+        return distance;
+    }
+
+    /**
+     * @return True if no enemy is strictly closer to the attacker than the defender is
+     */
+    public boolean isClosest(int attackerId, int defenderId) {
+        return nearestEnemyDistance(attackerId) >= chebyshevDistance(attackerId, defenderId);
+    }
+
+    private boolean ringHasEnemy(int x, int y, int r) {
+        if (r == 0) {
+            return enemyCount[y * xExtent + x] > 0;
+        }
+        int minX = Math.max(0, x - r);
+        int maxX = Math.min(xExtent - 1, x + r);
+        // top and bottom edges of the ring
+        for (int cy = y - r; cy <= y + r; cy += 2 * r) {
+            if (cy < 0 || cy >= yExtent) {
+                continue;
+            }
+            int row = cy * xExtent;
+            for (int cx = minX; cx <= maxX; cx++) {
+                if (enemyCount[row + cx] > 0) {
+                    return true;
+                }
+            }
+        }
+        // left and right edges, minus the corners
+        int minY = Math.max(0, y - r + 1);
+        int maxY = Math.min(yExtent - 1, y + r - 1);
+        for (int cx = x - r; cx <= x + r; cx += 2 * r) {
+            if (cx < 0 || cx >= xExtent) {
+                continue;
+            }
+            for (int cy = minY; cy <= maxY; cy++) {
+                if (enemyCount[cy * xExtent + cx] > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of steps the attacker has to walk to be next to the defender, 1 if it already
+     * is. Past the path radius this is the Chebyshev distance, but at least radius + 1. Integer.MAX_VALUE
+     * if the defender cannot be reached, see isReachable.
+     */
+    public int pathDistance(int attackerId, int defenderId) {
+        int steps = paths.distance(defenderId, getX(attackerId), getY(attackerId), xExtent);
+        if (steps >= 0) {
+            return steps;
+        }
+        if (paths.isEnclosed(defenderId)) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(paths.getRadius() + 1, chebyshevDistance(attackerId, defenderId));
+    }
+
+    /**
+     * @return False if every path from the attacker to the defender is blocked by other units
+     */
+    public boolean isReachable(int attackerId, int defenderId) {
+        return pathDistance(attackerId, defenderId) != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return The smallest pathDistance from the unit to any enemy footman, Integer.MAX_VALUE if none
+     * can be reached
+     */
+    public int nearestEnemyPathDistance(int unitId) {
+        if (nearestPathStamp[unitId] == stamp) {
+            return nearestPath[unitId];
+        }
+        int distance = Integer.MAX_VALUE;
+        for (int i = 0; i < numTracked; i++) {
+            if (isEnemy[tracked[i]] && paths.has(tracked[i])) {
+                distance = Math.min(distance, pathDistance(unitId, tracked[i]));
+            }
+        }
+        nearestPath[unitId] = distance;
+        nearestPathStamp[unitId] = stamp;
+        return distance;
+    }
+
+    /**
+     * @return The distance fields, null unless trackPaths() was called
+     */
+    public DistanceFields getPaths() {
+        return paths;
+    }
+
+    public int getXExtent() {
+        return xExtent;
+    }
+
+    public int getYExtent() {
+        return yExtent;
+    }
+
+    public boolean isOccupied(int x, int y) {
+        int cell = y * xExtent + x;
+        return friendlyCount[cell] + enemyCount[cell] > 0;
+    }
+
+    int cellOf(int unitId) {
+        return cellOf[unitId];
+    }
+
+    boolean isEnemy(int unitId) {
+        return isEnemy[unitId];
+    }
+
+    int numTracked() {
+        return numTracked;
+    }
+
+    /**
+     * @return The i-th unit on the grid
+     */
+    int tracked(int i) {
+        return tracked[i];
+    }
+
+    int numChanged() {
+        return numChanged;
+    }
+
+    /**
+     * @return The i-th cell a unit entered or left during the last update
+     */
+    int changedCell(int i) {
+        return changed[i];
+    }
+
+    /**
+     * @return True if the unit's cell changed
+     */
+    private boolean place(int id, int x, int y, boolean enemy) {
+        ensureCapacity(id);
+        x = Math.min(Math.max(x, 0), xExtent - 1);
+        y = Math.min(Math.max(y, 0), yExtent - 1);
+        int cell = y * xExtent + x;
+        seenStamp[id] = stamp;
+        if (cellOf[id] == cell && isEnemy[id] == enemy) {
+            return false;
+        }
+        if (cellOf[id] == NONE) {
+            if (numTracked == tracked.length) {
+                tracked = Arrays.copyOf(tracked, Math.max(16, numTracked * 2));
+            }
+            tracked[numTracked++] = id;
+        } else {
+            counts(id)[cellOf[id]]--;
+            changed(cellOf[id]);
+        }
+        changed(cell);
+        cellOf[id] = cell;
+        isEnemy[id] = enemy;
+        counts(id)[cell]++;
+        return true;
+    }
+
+    private void changed(int cell) {
+        if (numChanged == changed.length) {
+            changed = Arrays.copyOf(changed, numChanged * 2);
+        }
+        changed[numChanged++] = cell;
+    }
+
+    private int[] counts(int unitId) {
+        return isEnemy[unitId] ? enemyCount : friendlyCount;
+    }
+
+    private void resize(int xExtent, int yExtent) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        friendlyCount = new int[xExtent * yExtent];
+        enemyCount = new int[xExtent * yExtent];
+        Arrays.fill(cellOf, NONE);
+        numTracked = 0;
+        if (paths != null) {
+            paths.clear();
+        }
+    }
+
+    private void ensureCapacity(int unitId) {
+        if (unitId < cellOf.length) {
+            return;
+        }
+        int oldLength = cellOf.length;
+        int length = Math.max(unitId + 1, oldLength * 2);
+        cellOf = Arrays.copyOf(cellOf, length);
+        Arrays.fill(cellOf, oldLength, length, NONE);
+        isEnemy = Arrays.copyOf(isEnemy, length);
+        seenStamp = Arrays.copyOf(seenStamp, length);
+        nearestEnemy = Arrays.copyOf(nearestEnemy, length);
+        nearestStamp = Arrays.copyOf(nearestStamp, length);
+        nearestPath = Arrays.copyOf(nearestPath, length);
+        nearestPathStamp = Arrays.copyOf(nearestPathStamp, length);
+    }
+}
@@ -0,0 +1,157 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.util.Arrays;
+
+/**
+ * The position, health and owner of every living unit on one turn, as parallel primitive arrays.
+ *
+ * Units are stored densely in the order they were added, and indexOf maps a unit ID to its slot in
+ * O(1). The agent captures one from the StateView at the start of each turn, and every feature reads
+ * units from it instead of going back to the state through UnitViews. A snapshot can also be read back
+ * from an episode trace, so the features of a recorded turn can be computed without the simulator.
+ */
+class UnitSnapshot {
+
+    private static final int NONE = -1;
+
+    private int turn = -1;
+    private int xExtent;
+    private int yExtent;
+
+    private int size;
+    private int[] ids = new int[16];
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private int[] hps = new int[16];
+    private int[] owners = new int[16];
+
+    /** Indexed by unit ID, NONE for units not in the snapshot. */
+    private int[] indexById = new int[0];
+
+    /**
+     * @return True if the snapshot was taken on the given turn
+     */
+    public boolean isValidFor(int turn) {
+        return this.turn == turn;
+    }
+
+    /**
+     * Forces the next capture to happen even if the turn number has not changed, e.g. when a new
+     * episode starts.
+     */
+    public void invalidate() {
+        turn = -1;
+    }
+
+    /**
+     * Replaces the snapshot with the living units of the state.
+     */
+    public void capture(State.StateView stateView) {
+        clear(stateView.getTurnNumber(), stateView.getXExtent(), stateView.getYExtent());
+        for (Integer player : stateView.getPlayerNumbers()) {
+            for (Unit.UnitView unit : stateView.getUnits(player)) {
+                add(unit.getID(), unit.getXPosition(), unit.getYPosition(), unit.getHP(), player);
+            }
+        }
+    }
+
+    /**
+     * Empties the snapshot, ready for the units of a new turn to be added.
+     */
+    public void clear(int turn, int xExtent, int yExtent) {
+        for (int i = 0; i < size; i++) {
+            indexById[ids[i]] = NONE;
+        }
+        size = 0;
+        this.turn = turn;
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+    }
+
+    public void add(int unitId, int x, int y, int hp, int owner) {
+        if (size == ids.length) {
+            int length = size * 2;
+            ids = Arrays.copyOf(ids, length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            hps = Arrays.copyOf(hps, length);
+            owners = Arrays.copyOf(owners, length);
+        }
+        if (unitId >= indexById.length) {
+            int oldLength = indexById.length;
+            indexById = Arrays.copyOf(indexById, Math.max(unitId + 1, oldLength * 2));
+            Arrays.fill(indexById, oldLength, indexById.length, NONE);
+        }
+        ids[size] = unitId;
+        xs[size] = x;
+        ys[size] = y;
+        hps[size] = hp;
+        owners[size] = owner;
+        indexById[unitId] = size;
+        size++;
+    }
+
+    public int getTurn() {
+        return turn;
+    }
+
+    public int getXExtent() {
+        return xExtent;
+    }
+
+    public int getYExtent() {
+        return yExtent;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The unit's slot, or -1 if it is not alive on this turn
+     */
+    public int indexOf(int unitId) {
+        return unitId >= 0 && unitId < indexById.length ? indexById[unitId] : NONE;
+    }
+
+    public boolean contains(int unitId) {
+        return indexOf(unitId) != NONE;
+    }
+
+    /**
+     * @return The number of units the player owns
+     */
+    public int count(int owner) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (owners[i] == owner) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** The unit in slot i. */
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public int x(int i) {
+        return xs[i];
+    }
+
+    public int y(int i) {
+        return ys[i];
+    }
+
+    public int hp(int i) {
+        return hps[i];
+    }
+
+    public int owner(int i) {
+        return owners[i];
+    }
+}
@@ -0,0 +1,404 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Saves weight checkpoints in a versioned binary format on a background thread.
+ *
+ * Big-endian layout of a checkpoint file:
+ *
+ * <pre>
+ * int     magic "RLQW"
+ * int     format version
+ * short   length of the feature layout, then the layout as UTF-8 (feature names, comma separated)
+ * int     episode number
+ * double  gamma, learning rate, epsilon
+ * int     number of weights, then the weights as doubles
+ * long    CRC32 of everything above
+ * </pre>
+ *
+ * A checkpoint is written to a temporary file next to the target, forced to disk and then moved over
+ * the target in one atomic rename, so a crash mid-write leaves the previous checkpoint untouched.
+ * The training thread only copies the weights of episodes on the checkpoint interval and hands them
+ * over; if a write is still in progress when the next checkpoint comes in, only the newest pending
+ * checkpoint is written. On close(), which also runs when the JVM shuts down, pending writes are
+ * finished and the weights of the last episode are saved even if it was not on the interval. Those
+ * are copied only then, so close() should be called between episodes; from the shutdown hook it may
+ * catch updates of an episode that was still being played.
+ *
+ * Tile weights (see SparseQFunction) are not part of the checkpoint file. When a checkpoint carries them
+ * they are written alongside it to tilesFile(file), in their own format, and likewise the statistics
+ * of a FeatureNormalizer to normalizerFile(file).
+ */
+class WeightCheckpointer {
+
+    private static final int MAGIC = 0x524C5157;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The contents of one checkpoint file.
+     */
+    static class Checkpoint {
+        final String layout;
+        final int episode;
+        final double gamma;
+        final double learningRate;
+        final double epsilon;
+        final double[] weights;
+        /** Tile weights written to tilesFile, null without tile coding. */
+        final String tileLayout;
+        final SparseQFunction tiles;
+        /** Feature statistics written to normalizerFile, null without normalization. */
+        final FeatureNormalizer normalizer;
+
+        Checkpoint(String layout, int episode, double gamma, double learningRate, double epsilon, double[] weights) {
+            this(layout, episode, gamma, learningRate, epsilon, weights, null, null, null);
+        }
+
+        Checkpoint(String layout, int episode, double gamma, double learningRate, double epsilon, double[] weights,
+                   String tileLayout, SparseQFunction tiles, FeatureNormalizer normalizer) {
+            this.layout = layout;
+            this.episode = episode;
+            this.gamma = gamma;
+            this.learningRate = learningRate;
+            this.epsilon = epsilon;
+            this.weights = weights;
+            this.tileLayout = tileLayout;
+            this.tiles = tiles;
+            this.normalizer = normalizer;
+        }
+    }
+
+    private final File file;
+    private final File textExport;
+    private final int everyEpisodes;
+    private final AtomicReference<Checkpoint> pending = new AtomicReference<Checkpoint>();
+    /** The last episode seen if it was not on the interval, for close() to save. Holds the live weights. */
+    private volatile Checkpoint unsaved;
+    private volatile int lastQueuedEpisode = -1;
+    private final ExecutorService writer;
+    private final Thread shutdownHook;
+
+    /**
+     * @param file Where checkpoints are written
+     * @param textExport If not null, every checkpoint is also exported in the text format here
+     * @param everyEpisodes Checkpoint interval in episodes
+     */
+    public WeightCheckpointer(File file, File textExport, int everyEpisodes) {
+        this.file = file;
+        this.textExport = textExport;
+        this.everyEpisodes = Math.max(1, everyEpisodes);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "weight-checkpointer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Queues a checkpoint if the episode is on the checkpoint interval. Never waits for the disk.
+     *
+     * @param weights The live weights. They are copied before this returns if a checkpoint is queued.
+     */
+    public void episodeFinished(String layout, int episode, double gamma, double learningRate, double epsilon,
+                                double[] weights) {
+        episodeFinished(layout, episode, gamma, learningRate, epsilon, weights, null, null, null);
+    }
+
+    /**
+     * episodeFinished for an agent with tile weights or feature normalization as well.
+     *
+     * @param tiles The live tile weights, or null. Copied along with the weights.
+     * @param normalizer The live feature statistics, or null. Copied along with the weights.
+     */
+    public void episodeFinished(String layout, int episode, double gamma, double learningRate, double epsilon,
+                                double[] weights, String tileLayout, SparseQFunction tiles,
+                                FeatureNormalizer normalizer) {
+        Checkpoint live = new Checkpoint(layout, episode, gamma, learningRate, epsilon, weights,
+                tileLayout, tiles, normalizer);
+        if (episode % everyEpisodes != 0) {
+            unsaved = live;
+            return;
+        }
+        unsaved = null;
+        lastQueuedEpisode = episode;
+        // copied here, on the training thread between episodes, never later while the weights may be changing;
+        // only schedule a write if the writer has not already got one queued that will pick this up
+        if (pending.getAndSet(copy(live)) == null && !writer.isShutdown()) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            });
+        }
+    }
+
+    private static Checkpoint copy(Checkpoint live) {
+        return new Checkpoint(live.layout, live.episode, live.gamma, live.learningRate, live.epsilon,
+                live.weights.clone(), live.tileLayout, live.tiles == null ? null : live.tiles.copy(),
+                live.normalizer == null ? null : live.normalizer.copy());
+    }
+
+    /**
+     * Writes whatever is still pending, stops the writer thread and removes the shutdown hook.
+     */
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // the JVM is shutting down, this is the hook running
+        }
+        writer.shutdown();
+        boolean finished;
+        try {
+            finished = writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        }
+        if (!finished) {
+            // writing here as well could race the writer thread to the same temporary file
+            System.err.println("Failed to save the last weight checkpoint. Reason: the previous checkpoint was still being written.");
+            return;
+        }
+        Checkpoint last = unsaved;
+        if (last != null && last.episode > lastQueuedEpisode) {
+            lastQueuedEpisode = last.episode;
+            pending.set(copy(last));
+        }
+        // also picks up a checkpoint queued while shutting down
+        writePending();
+    }
+
+    private void writePending() {
+        Checkpoint checkpoint = pending.getAndSet(null);
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            write(file, checkpoint);
+            if (checkpoint.tiles != null) {
+                SparseQFunction.write(tilesFile(file), checkpoint.tileLayout, checkpoint.tiles);
+            }
+            if (checkpoint.normalizer != null) {
+                FeatureNormalizer.write(normalizerFile(file), checkpoint.layout, checkpoint.normalizer);
+            }
+            if (textExport != null) {
+                writeText(textExport, checkpoint);
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to write weight checkpoint. Reason: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Atomically replaces the file with the checkpoint.
+     */
+    public static void write(File file, Checkpoint checkpoint) throws IOException {
+        byte[] layout = checkpoint.layout.getBytes(UTF8);
+        int size = 4 + 4 + 2 + layout.length + 4 + 3 * 8 + 4 + 8 * checkpoint.weights.length + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putShort((short) layout.length);
+        buffer.put(layout);
+        buffer.putInt(checkpoint.episode);
+        buffer.putDouble(checkpoint.gamma);
+        buffer.putDouble(checkpoint.learningRate);
+        buffer.putDouble(checkpoint.epsilon);
+        buffer.putInt(checkpoint.weights.length);
+        for (double weight : checkpoint.weights) {
+            buffer.putDouble(weight);
+        }
+        writeAtomically(file, buffer);
+    }
+
+    /**
+     * Appends the CRC32 of everything in the buffer to it and atomically replaces the file with the
+     * result. Every binary file saved with the weights is written through here.
+     *
+     * @param buffer Heap buffer holding the contents up to its position, with 8 bytes left for the checksum
+     */
+    static void writeAtomically(File file, ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+        replaceAtomically(file, buffer);
+    }
+
+    /**
+     * Atomically replaces the file with the buffer's remaining bytes: they are written to a temporary
+     * file next to it, forced to disk and moved over it in one rename. The text exports go through here
+     * without a checksum.
+     */
+    static void replaceAtomically(File file, ByteBuffer buffer) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temp = new File(directory, file.getName() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Exports the weights in the text format, with the feature layout in layoutFile(file) since the
+     * text format has no room for it.
+     */
+    public static void writeText(File file, Checkpoint checkpoint) throws IOException {
+        LinearQFunction.writeText(file, checkpoint.weights);
+        replaceAtomically(layoutFile(file), ByteBuffer.wrap(checkpoint.layout.getBytes(UTF8)));
+    }
+
+    /**
+     * @return The file holding the feature layout of text weights exported to the given file
+     */
+    public static File layoutFile(File textFile) {
+        String name = textFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(textFile.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".features");
+    }
+
+    /**
+     * @return The file holding the tile weights checkpointed with the given checkpoint file
+     */
+    public static File tilesFile(File checkpointFile) {
+        String name = checkpointFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(checkpointFile.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".tiles");
+    }
+
+    /**
+     * @return The file holding the feature statistics checkpointed with the given checkpoint file
+     */
+    public static File normalizerFile(File checkpointFile) {
+        String name = checkpointFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(checkpointFile.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".norm");
+    }
+
+    public static String readLayout(File layoutFile) throws IOException {
+        return new String(Files.readAllBytes(layoutFile.toPath()), UTF8).trim();
+    }
+
+    /**
+     * Reads a checkpoint through a memory mapping of the file.
+     *
+     * @throws IOException If the file is missing, truncated, of another format version or fails its checksum
+     */
+    public static Checkpoint read(File file) throws IOException {
+        ByteBuffer buffer = map(file);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a weight checkpoint.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has checkpoint format version " + version + ", expected " + VERSION + ".");
+            }
+            byte[] layout = new byte[buffer.getShort()];
+            buffer.get(layout);
+            int episode = buffer.getInt();
+            double gamma = buffer.getDouble();
+            double learningRate = buffer.getDouble();
+            double epsilon = buffer.getDouble();
+            double[] weights = new double[buffer.getInt()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = buffer.getDouble();
+            }
+            return new Checkpoint(new String(layout, UTF8), episode, gamma, learningRate, epsilon, weights);
+        } catch (RuntimeException ex) {
+            // BufferUnderflowException or a negative array size from a truncated file
+            throw new IOException(file + " is truncated or corrupt.", ex);
+        }
+    }
+
+    /**
+     * Memory maps a file written by writeAtomically and verifies its checksum.
+     *
+     * @return The contents without the checksum, positioned at the start
+     * @throws IOException If the file is missing, too short to hold a checksum or fails it
+     */
+    static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is truncated or corrupt.");
+            }
+            // the mapping stays valid once the file is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int payloadEnd = (int) size - 8;
+            long expected = buffer.getLong(payloadEnd);
+            buffer.limit(payloadEnd);
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            if (crc.getValue() != expected) {
+                throw new IOException(file + " is corrupt, checksum mismatch.");
+            }
+            buffer.position(0);
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Exports a checkpoint in the text format.
+     *
+     * Usage: WeightCheckpointer [checkpoint] [text output]
+     */
+    public static void main(String[] args) throws IOException {
+        File in = new File(args.length >= 1 ? args[0] : "agent_weights/weights.bin");
+        File out = new File(args.length >= 2 ? args[1] : "agent_weights/weights.txt");
+        Checkpoint checkpoint = read(in);
+        writeText(out, checkpoint);
+        System.out.println("Episode " + checkpoint.episode + ", features " + checkpoint.layout + ", gamma "
+                + checkpoint.gamma + ", learning rate " + checkpoint.learningRate + ", epsilon " + checkpoint.epsilon);
+        System.out.println("Wrote " + checkpoint.weights.length + " weights to " + out + " and their layout to " + layoutFile(out));
+    }
+}
@@ -0,0 +1,159 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AssignmentSolverTest {
+
+    private static AssignmentSolver solver(double[][] values, int... capacity) {
+        AssignmentSolver solver = new AssignmentSolver();
+        solver.setSize(values.length, capacity.length);
+        for (int r = 0; r < values.length; r++) {
+            for (int c = 0; c < capacity.length; c++) {
+                solver.setValue(r, c, values[r][c]);
+            }
+        }
+        for (int c = 0; c < capacity.length; c++) {
+            solver.setCapacity(c, capacity[c]);
+        }
+        return solver;
+    }
+
+    private static double total(double[][] values, int[] columnOf) {
+        double total = 0;
+        for (int r = 0; r < values.length; r++) {
+            total += values[r][columnOf[r]];
+        }
+        return total;
+    }
+
+    /**
+     * @return The best total over every assignment of the rows from the given one on within capacity
+     */
+    private static double bruteForce(double[][] values, int[] remaining, int row) {
+        if (row == values.length) {
+            return 0;
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < remaining.length; c++) {
+            if (remaining[c] > 0) {
+                remaining[c]--;
+                best = Math.max(best, values[row][c] + bruteForce(values, remaining, row + 1));
+                remaining[c]++;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void findsTheBestAssignment() {
+        Random random = new Random(12345678);
+        AssignmentSolver solver = new AssignmentSolver();
+        for (int trial = 0; trial < 500; trial++) {
+            int rows = 1 + random.nextInt(6);
+            int columns = 1 + random.nextInt(5);
+            int[] capacity = new int[columns];
+            int slots = 0;
+            for (int c = 0; c < columns; c++) {
+                capacity[c] = random.nextInt(4);
+                slots += capacity[c];
+            }
+            if (slots < rows) {
+                capacity[0] += rows - slots;
+            }
+            double[][] values = new double[rows][columns];
+            solver.setSize(rows, columns);
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columns; c++) {
+                    // few distinct values, so ties are common
+                    values[r][c] = random.nextInt(8) - 4;
+                    solver.setValue(r, c, values[r][c]);
+                }
+            }
+            for (int c = 0; c < columns; c++) {
+                solver.setCapacity(c, capacity[c]);
+            }
+
+            int[] columnOf = solver.solve();
+            int[] used = new int[columns];
+            for (int r = 0; r < rows; r++) {
+                used[columnOf[r]]++;
+            }
+            for (int c = 0; c < columns; c++) {
+                assertTrue("Column " + c + " over capacity in trial " + trial, used[c] <= capacity[c]);
+            }
+            assertEquals("Trial " + trial, bruteForce(values, capacity.clone(), 0), total(values, columnOf), 1e-9);
+        }
+    }
+
+    @Test
+    public void spreadsFootmenOverEnemiesByCapacity() {
+        double[][] values = {
+                {5, 1},
+                {5, 1},
+                {5, 1},
+        };
+        int[] columnOf = solver(values, 2, 3).solve();
+        int onFirst = 0;
+        for (int column : columnOf) {
+            if (column == 0) {
+                onFirst++;
+            }
+        }
+        assertEquals(2, onFirst);
+    }
+
+    @Test
+    public void addsSlotsWhenThereAreTooFew() {
+        double[][] values = {
+                {3, 1},
+                {3, 1},
+                {3, 1},
+                {3, 1},
+        };
+        int[] columnOf = solver(values, 1, 0).solve();
+        int[] used = new int[2];
+        for (int column : columnOf) {
+            used[column]++;
+        }
+        // three slots short, so every enemy gets two more
+        assertEquals(3, used[0]);
+        assertEquals(1, used[1]);
+    }
+
+    @Test
+    public void treatsNonFiniteValuesAsWorst() {
+        double[][] values = {
+                {Double.NaN, 1},
+                {Double.POSITIVE_INFINITY, 2},
+        };
+        int[] columnOf = solver(values, 2, 2).solve();
+        assertEquals(1, columnOf[0]);
+        assertEquals(1, columnOf[1]);
+    }
+
+    @Test
+    public void assignsNothingWithoutColumns() {
+        AssignmentSolver solver = new AssignmentSolver();
+        solver.setSize(3, 0);
+        int[] columnOf = solver.solve();
+        for (int r = 0; r < 3; r++) {
+            assertEquals(AssignmentSolver.NONE, columnOf[r]);
+        }
+    }
+
+    @Test
+    public void resetsCapacitiesForEveryProblem() {
+        AssignmentSolver solver = solver(new double[][]{{1, 9}}, 1, 1);
+        assertEquals(1, solver.solve()[0]);
+
+        solver.setSize(1, 2);
+        solver.setValue(0, 0, 1);
+        solver.setValue(0, 1, 9);
+        solver.setCapacity(0, 1);
+        assertEquals(0, solver.solve()[0]);
+    }
+}
@@ -0,0 +1,121 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DamageWindowTest {
+
+    private static final int PLAYER = 0;
+    private static final int ENEMY = 1;
+
+    /** Records one hit on the turn. */
+    private static void hit(DamageWindow window, int turn, int attacker, int defender, int damage, int defenderPlayer) {
+        window.record(turn, 1, new int[]{attacker}, new int[]{defender}, new int[]{damage}, new int[]{defenderPlayer});
+    }
+
+    @Test
+    public void sumsDamageOverTheWindow() {
+        DamageWindow window = new DamageWindow(3, PLAYER);
+        hit(window, 0, 1, 10, 5, ENEMY);
+        hit(window, 1, 1, 10, 7, ENEMY);
+        window.record(2, 2, new int[]{10, 2}, new int[]{1, 10}, new int[]{3, 4}, new int[]{PLAYER, ENEMY});
+
+        assertEquals(12, window.damage(1, 10));
+        assertEquals(2, window.hits(1, 10));
+        assertEquals(3, window.damage(10, 1));
+        assertEquals(12, window.dealt(1));
+        assertEquals(16, window.taken(10));
+        assertEquals(3, window.taken(1));
+        assertEquals(0, window.damage(2, 1));
+    }
+
+    @Test
+    public void evictsTurnsThatLeaveTheWindow() {
+        DamageWindow window = new DamageWindow(3, PLAYER);
+        hit(window, 0, 1, 10, 5, ENEMY);
+        hit(window, 1, 1, 10, 7, ENEMY);
+        hit(window, 2, 2, 10, 1, ENEMY);
+        hit(window, 3, 2, 10, 1, ENEMY);
+
+        assertEquals(7, window.damage(1, 10));
+        assertEquals(1, window.hits(1, 10));
+        assertEquals(9, window.taken(10));
+        assertEquals(0, window.events(0));
+
+        hit(window, 4, 2, 10, 1, ENEMY);
+        assertEquals(0, window.damage(1, 10));
+        assertEquals(0, window.dealt(1));
+        assertEquals(3, window.damage(2, 10));
+    }
+
+    @Test
+    public void skippedTurnsHadNoDamage() {
+        DamageWindow window = new DamageWindow(3, PLAYER);
+        hit(window, 0, 1, 10, 5, ENEMY);
+        hit(window, 2, 1, 10, 7, ENEMY);
+        assertEquals(12, window.damage(1, 10));
+        assertEquals(0, window.events(1));
+
+        hit(window, 5, 2, 11, 1, ENEMY);
+        assertEquals(0, window.damage(1, 10));
+        assertEquals(0, window.taken(10));
+        assertEquals(1, window.taken(11));
+    }
+
+    @Test
+    public void walksTheEventsOfATurn() {
+        DamageWindow window = new DamageWindow(2, PLAYER);
+        window.record(4, 2, new int[]{1, 10}, new int[]{10, 1}, new int[]{5, 6}, new int[]{ENEMY, PLAYER});
+
+        assertEquals(2, window.events(4));
+        assertEquals(1, window.eventAttacker(4, 0));
+        assertEquals(10, window.eventDefender(4, 0));
+        assertEquals(5, window.eventDamage(4, 0));
+        assertFalse(window.eventHitPlayer(4, 0));
+        assertTrue(window.eventHitPlayer(4, 1));
+        assertEquals(0, window.events(3));
+        assertEquals(0, window.events(-1));
+    }
+
+    @Test
+    public void keepsPairTotalsWhenTheTableGrows() {
+        DamageWindow window = new DamageWindow(1, PLAYER);
+        int count = 500;
+        int[] attackers = new int[count];
+        int[] defenders = new int[count];
+        int[] damage = new int[count];
+        int[] players = new int[count];
+        for (int i = 0; i < count; i++) {
+            attackers[i] = i % 25;
+            defenders[i] = 100 + i / 25;
+            damage[i] = i;
+            players[i] = ENEMY;
+        }
+        window.record(0, count, attackers, defenders, damage, players);
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, window.damage(i % 25, 100 + i / 25));
+            assertEquals(1, window.hits(i % 25, 100 + i / 25));
+        }
+        assertEquals(count, window.events(0));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        DamageWindow window = new DamageWindow(3, PLAYER);
+        hit(window, 7, 1, 10, 5, ENEMY);
+        window.clear();
+
+        assertEquals(0, window.damage(1, 10));
+        assertEquals(0, window.dealt(1));
+        assertEquals(0, window.events(7));
+        hit(window, 0, 1, 10, 2, ENEMY);
+        assertEquals(2, window.damage(1, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyWindow() {
+        new DamageWindow(0, PLAYER);
+    }
+}
@@ -0,0 +1,56 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinearQFunctionTest {
+
+    @Test
+    public void stepsEveryWeightButTheBias() {
+        LinearQFunction q = new LinearQFunction(new double[]{1, 2, 3});
+        q.update(new double[]{1, 10, -1}, 0.5, 0.1);
+
+        assertArrayEquals(new double[]{1, 2.5, 2.95}, q.getWeights(), 1e-12);
+        assertEquals(1, q.getVersion());
+    }
+
+    @Test
+    public void rejectsANonFiniteTdError() {
+        LinearQFunction q = new LinearQFunction(new double[]{1, 2, 3});
+        for (double tdError : new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+            try {
+                q.update(new double[]{1, 1, 1}, tdError, 0.1);
+                fail("Took an update with TD error " + tdError);
+            } catch (IllegalStateException expected) {
+            }
+        }
+        assertArrayEquals(new double[]{1, 2, 3}, q.getWeights(), 0);
+        assertEquals(0, q.getVersion());
+    }
+
+    @Test
+    public void rejectsANonFiniteFeature() {
+        LinearQFunction q = new LinearQFunction(new double[]{1, 2, 3});
+        try {
+            q.update(new double[]{0, 5, 1, Double.NaN}, 1, 0.0, 0.1);
+            fail("Took an update along a NaN feature");
+        } catch (IllegalStateException expected) {
+        }
+        assertArrayEquals(new double[]{1, 2, 3}, q.getWeights(), 0);
+    }
+
+    @Test
+    public void batchValuesMatchSingleValues() {
+        LinearQFunction q = new LinearQFunction(new double[]{1, -0.5, 0.25});
+        double[] features = new double[3 + 7 * 3];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = i * 0.37 - 2;
+        }
+        double[] out = new double[8];
+        q.values(features, 3, 7, out, 1);
+        for (int row = 0; row < 7; row++) {
+            assertEquals(q.value(features, 3 + row * 3), out[1 + row], 0);
+        }
+    }
+}
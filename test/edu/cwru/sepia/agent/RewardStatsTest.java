@@ -0,0 +1,143 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RewardStatsTest {
+
+    @Test
+    public void tracksMeanAndVariance() {
+        RewardStats stats = new RewardStats(5, 16);
+        assertTrue(Double.isNaN(stats.mean()));
+        double[] rewards = {-100, 3.5, 0, 42, -0.25, 100};
+        double sum = 0;
+        for (double reward : rewards) {
+            stats.add(1, reward);
+            sum += reward;
+        }
+        double mean = sum / rewards.length;
+        double squares = 0;
+        for (double reward : rewards) {
+            squares += (reward - mean) * (reward - mean);
+        }
+        assertEquals(rewards.length, stats.count());
+        assertEquals(mean, stats.mean(), 1e-12);
+        assertEquals(squares / (rewards.length - 1), stats.variance(), 1e-9);
+    }
+
+    @Test
+    public void interpolatesPercentilesWithinABucket() {
+        RewardStats stats = new RewardStats(5, 16);
+        assertTrue(Double.isNaN(stats.percentile(0.5)));
+        // all in the bucket [0, 1)
+        for (int i = 0; i < 100; i++) {
+            stats.add(1, 0.5);
+        }
+        assertEquals(0.5, stats.percentile(0.5), 1e-12);
+        assertEquals(0.1, stats.percentile(0.1), 1e-12);
+        assertEquals(1.0, stats.percentile(1), 1e-12);
+    }
+
+    @Test
+    public void interpolatesPercentilesAcrossBuckets() {
+        RewardStats stats = new RewardStats(5, 16);
+        for (int i = 0; i < 100; i++) {
+            stats.add(1, i);
+        }
+        // 50 rewards lie below 50, and the 50th fills the bucket [49, 50)
+        assertEquals(50, stats.percentile(0.5), 1e-12);
+        assertEquals(90, stats.percentile(0.9), 1e-12);
+        assertEquals(0.5, stats.percentile(0.005), 1e-12);
+    }
+
+    @Test
+    public void reportsRewardsOutsideTheHistogramAsItsBounds() {
+        RewardStats stats = new RewardStats(5, 16);
+        stats.add(1, -1000);
+        stats.add(1, 1000);
+        assertEquals(-256, stats.percentile(0.25), 0);
+        assertEquals(256, stats.percentile(1), 0);
+    }
+
+    @Test
+    public void sumsTheEpisodePerFootman() {
+        RewardStats stats = new RewardStats(5, 16);
+        stats.startEpisode();
+        stats.add(3, 10);
+        stats.add(40, -4);
+        stats.add(3, 2);
+        assertEquals(8, stats.episodeSum(), 0);
+        assertEquals(8.0 / 3, stats.episodeAverage(), 1e-12);
+        assertEquals(12, stats.footmanSum(3), 0);
+        assertEquals(-4, stats.footmanSum(40), 0);
+        assertEquals(0, stats.footmanSum(1000), 0);
+
+        stats.startEpisode();
+        assertEquals(0, stats.footmanSum(3), 0);
+        assertEquals(0, stats.episodeSum(), 0);
+        assertTrue(Double.isNaN(stats.episodeAverage()));
+        assertEquals(3, stats.count());
+    }
+
+    @Test
+    public void averagesTheLastEpisodesOnly() {
+        RewardStats stats = new RewardStats(3, 16);
+        assertTrue(Double.isNaN(stats.windowAverage()));
+        stats.addToWindow(Double.NaN);
+        stats.addToWindow(1);
+        stats.addToWindow(2);
+        assertTrue(Double.isNaN(stats.windowAverage()));
+        stats.addToWindow(6);
+        assertEquals(3, stats.windowAverage(), 1e-12);
+    }
+
+    @Test
+    public void halvesAFullCurveAndKeepsItsLabels() {
+        RewardStats stats = new RewardStats(5, 4);
+        for (int i = 1; i <= 4; i++) {
+            stats.addCurvePoint(i, 10 * (i - 1));
+        }
+        assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0), stats.curve());
+        assertEquals(Arrays.asList(0L, 10L, 20L, 30L), stats.curveGamesPlayed());
+        assertEquals(1, stats.cyclesPerPoint());
+
+        // the fifth cycle compacts the curve and waits for a sixth to make a whole point
+        stats.addCurvePoint(5, 40);
+        assertEquals(2, stats.cyclesPerPoint());
+        assertEquals(Arrays.asList(1.5, 3.5), stats.curve());
+        assertEquals(Arrays.asList(0L, 20L), stats.curveGamesPlayed());
+
+        stats.addCurvePoint(6, 50);
+        assertEquals(Arrays.asList(1.5, 3.5, 5.5), stats.curve());
+        assertEquals(Arrays.asList(0L, 20L, 40L), stats.curveGamesPlayed());
+    }
+
+    @Test
+    public void carriesTheOddPointOverWhenHalving() {
+        RewardStats stats = new RewardStats(5, 3);
+        for (int i = 1; i <= 4; i++) {
+            stats.addCurvePoint(i, 10 * (i - 1));
+        }
+        assertEquals(Arrays.asList(1.5, 3.0), stats.curve());
+        assertEquals(Arrays.asList(0L, 20L), stats.curveGamesPlayed());
+
+        stats.addCurvePoint(5, 40);
+        assertEquals(Arrays.asList(1.5, 3.0, 4.5), stats.curve());
+        assertEquals(Arrays.asList(0L, 20L, 30L), stats.curveGamesPlayed());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void curveViewStopsAtItsSize() {
+        RewardStats stats = new RewardStats(5, 4);
+        stats.addCurvePoint(1, 0);
+        stats.curve().get(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACurveOfOnePoint() {
+        new RewardStats(5, 1);
+    }
+}
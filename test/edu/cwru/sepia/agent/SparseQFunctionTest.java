@@ -0,0 +1,80 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SparseQFunctionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sumsTheWeightsOfActiveTiles() {
+        SparseQFunction q = new SparseQFunction();
+        long[] tiles = {7, SparseQFunction.NO_TILE, 9};
+        q.update(tiles, 0, 3, 2, 0.5);
+        q.update(new long[]{9}, 0, 1, 1, 1);
+
+        assertEquals(1, q.get(7), 0);
+        assertEquals(2, q.get(9), 0);
+        assertEquals(0, q.get(8), 0);
+        assertEquals(3, q.value(tiles, 0, 3), 0);
+        assertEquals(2, q.value(tiles, 1, 2), 0);
+        assertEquals(2, q.size());
+    }
+
+    @Test
+    public void keepsEveryWeightWhileGrowing() {
+        SparseQFunction q = new SparseQFunction();
+        int count = 10000;
+        long[] tile = new long[1];
+        for (int i = 1; i <= count; i++) {
+            // keys whose low 32 bits are all zero, which the hash has to fold in
+            tile[0] = (long) i << 32;
+            q.update(tile, 0, 1, i, 1);
+        }
+        assertEquals(count, q.size());
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i, q.get((long) i << 32), 0);
+        }
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        SparseQFunction q = new SparseQFunction();
+        q.update(new long[]{5}, 0, 1, 1, 1);
+        SparseQFunction copy = q.copy();
+        q.update(new long[]{5, 6}, 0, 2, 1, 1);
+
+        assertEquals(1, copy.get(5), 0);
+        assertEquals(0, copy.get(6), 0);
+        assertEquals(2, q.get(5), 0);
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = new File(folder.getRoot(), "weights.tiles");
+        SparseQFunction q = new SparseQFunction();
+        for (int i = 1; i <= 3000; i++) {
+            q.update(new long[]{i * 31L}, 0, 1, i * 0.25, 1);
+        }
+        SparseQFunction.write(file, "tiles-a", q);
+
+        SparseQFunction read = SparseQFunction.read(file, "tiles-a");
+        assertEquals(q.size(), read.size());
+        for (int i = 1; i <= 3000; i++) {
+            assertEquals(i * 0.25, read.get(i * 31L), 0);
+        }
+        try {
+            SparseQFunction.read(file, "tiles-b");
+            fail("Read tiles for another tile layout");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StalemateDetectorTest {
+
+    @Test
+    public void declaresAStalemateAfterIdleTurns() {
+        StalemateDetector detector = new StalemateDetector(10, 0);
+        detector.startEpisode();
+        assertFalse(detector.turn(5, true, 0));
+        assertFalse(detector.turn(14, false, 0));
+        assertTrue(detector.turn(15, false, 0));
+        // it holds even if progress follows
+        assertTrue(detector.turn(16, true, 0));
+        assertTrue(detector.isStalemate());
+    }
+
+    @Test
+    public void declaresAStalemateAfterFailedActions() {
+        StalemateDetector detector = new StalemateDetector(0, 5);
+        detector.startEpisode();
+        assertFalse(detector.turn(1, false, 3));
+        assertFalse(detector.turn(2, true, 3));
+        assertFalse(detector.turn(3, false, 4));
+        assertTrue(detector.turn(4, false, 1));
+    }
+
+    @Test
+    public void zeroThresholdsNeverDeclareAStalemate() {
+        StalemateDetector detector = new StalemateDetector(0, 0);
+        detector.startEpisode();
+        assertFalse(detector.turn(100000, false, 1000000));
+    }
+
+    @Test
+    public void resumeCountsAfresh() {
+        StalemateDetector detector = new StalemateDetector(10, 5);
+        detector.startEpisode();
+        assertTrue(detector.turn(10, false, 0));
+        detector.resume(10);
+        assertFalse(detector.isStalemate());
+        assertFalse(detector.turn(19, false, 4));
+        assertTrue(detector.turn(20, false, 0));
+
+        detector.startEpisode();
+        assertFalse(detector.isStalemate());
+        assertFalse(detector.turn(9, false, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeThresholds() {
+        new StalemateDetector(-1, 0);
+    }
+}
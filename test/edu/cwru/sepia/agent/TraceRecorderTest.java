@@ -0,0 +1,188 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records episodes on a state and history built from rl_5fv5f and reads them back with TraceReader.
+ */
+public class TraceRecorderTest {
+
+    private static final int PLAYER = 0;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private State state;
+    private History history;
+    private State.StateView stateView;
+    private History.HistoryView historyView;
+    private int footman;
+    private int enemy;
+
+    @Before
+    public void createState() throws Exception {
+        state = new XmlStateCreator(ParallelTrainer.loadMap(new File("data/rl_5fv5f.xml"))).createState();
+        history = new History();
+        history.addPlayer(PLAYER);
+        history.addPlayer(RLAgent.ENEMY_PLAYERNUM);
+        stateView = state.getView(PLAYER);
+        historyView = history.getView(PLAYER);
+        footman = Collections.min(stateView.getUnitIds(PLAYER));
+        enemy = Collections.min(stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM));
+    }
+
+    private UnitSnapshot snapshot() {
+        UnitSnapshot units = new UnitSnapshot();
+        units.capture(stateView);
+        return units;
+    }
+
+    /**
+     * Records an episode: a new decision on turn 0, a hit and a reward on turn 1 with the attack
+     * repeated, and a quiet turn 2.
+     */
+    private void recordEpisode(TraceRecorder recorder, int episode) {
+        Map<Integer, Action> attack = Collections.singletonMap(footman, Action.createCompoundAttack(footman, enemy));
+        recorder.startEpisode(episode, true, stateView);
+
+        recorder.beginTurn(stateView, historyView);
+        recorder.decision(footman);
+        recorder.endTurn(attack, snapshot());
+        history.recordDamage(state.getUnit(footman), state.getUnit(enemy), 5, state);
+        state.incrementTurn();
+
+        recorder.beginTurn(stateView, historyView);
+        recorder.reward(footman, -1.5);
+        recorder.endTurn(attack, snapshot());
+        state.incrementTurn();
+
+        recorder.beginTurn(stateView, historyView);
+        recorder.endTurn(Collections.<Integer, Action>emptyMap(), snapshot());
+        recorder.endEpisode(false, 3);
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws IOException {
+        File file = TraceRecorder.newTraceFile(folder.getRoot());
+        UnitSnapshot start = snapshot();
+        TraceRecorder recorder = new TraceRecorder(file, PLAYER);
+        recordEpisode(recorder, 7);
+        recorder.close();
+
+        TraceReader trace = new TraceReader(file);
+        assertEquals(PLAYER, trace.getPlayernum());
+
+        assertEquals(TraceRecorder.EPISODE, trace.next());
+        assertEquals(7, trace.episode);
+        assertTrue(trace.exploration);
+        assertEquals(stateView.getXExtent(), trace.xExtent);
+        assertEquals(stateView.getYExtent(), trace.yExtent);
+
+        assertEquals(TraceRecorder.TURN, trace.next());
+        assertEquals(0, trace.turn);
+        assertEquals(0, trace.numDamage);
+        assertEquals(0, trace.numRewards);
+        assertEquals(1, trace.numCommands);
+        assertEquals(footman, trace.commandIds[0]);
+        assertEquals(enemy, trace.commandTargets[0]);
+        assertTrue(trace.commandDecisions[0]);
+        assertTrue(trace.hasUnits);
+        assertEquals(start.size(), trace.units.size());
+        for (int i = 0; i < start.size(); i++) {
+            int unit = trace.units.indexOf(start.id(i));
+            assertTrue(unit >= 0);
+            assertEquals(start.x(i), trace.units.x(unit));
+            assertEquals(start.y(i), trace.units.y(unit));
+            assertEquals(start.hp(i), trace.units.hp(unit));
+            assertEquals(start.owner(i), trace.units.owner(unit));
+        }
+
+        assertEquals(TraceRecorder.TURN, trace.next());
+        assertEquals(1, trace.turn);
+        assertEquals(1, trace.numDamage);
+        assertEquals(footman, trace.damageAttackers[0]);
+        assertEquals(enemy, trace.damageDefenders[0]);
+        assertEquals(RLAgent.ENEMY_PLAYERNUM, trace.damageDefenderPlayers[0]);
+        assertEquals(5, trace.damage[0]);
+        assertEquals(1, trace.numRewards);
+        assertEquals(footman, trace.rewardIds[0]);
+        assertEquals(-1.5, trace.rewards[0], 0);
+        assertEquals(1, trace.numCommands);
+        assertFalse(trace.commandDecisions[0]);
+
+        // the quiet turn is not written
+        assertEquals(TraceRecorder.END, trace.next());
+        assertFalse(trace.won);
+        assertEquals(3, trace.turns);
+        assertEquals(TraceReader.END_OF_TRACE, trace.next());
+        assertFalse(trace.isTruncated());
+    }
+
+    @Test
+    public void appendsToAnExistingTrace() throws Exception {
+        File file = TraceRecorder.newTraceFile(folder.getRoot());
+        TraceRecorder recorder = new TraceRecorder(file, PLAYER);
+        recordEpisode(recorder, 1);
+        recorder.close();
+        createState();
+        recorder = new TraceRecorder(file, PLAYER);
+        recordEpisode(recorder, 2);
+        recorder.close();
+
+        TraceReader trace = new TraceReader(file);
+        int episodes = 0;
+        for (byte type = trace.next(); type != TraceReader.END_OF_TRACE; type = trace.next()) {
+            if (type == TraceRecorder.EPISODE) {
+                episodes++;
+                assertEquals(episodes, trace.episode);
+            }
+        }
+        assertEquals(2, episodes);
+        assertFalse(trace.isTruncated());
+    }
+
+    @Test
+    public void endsAtARecordCutShort() throws IOException {
+        File file = TraceRecorder.newTraceFile(folder.getRoot());
+        TraceRecorder recorder = new TraceRecorder(file, PLAYER);
+        recordEpisode(recorder, 1);
+        recorder.close();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // into the END record
+            out.setLength(out.length() - 2);
+        } finally {
+            out.close();
+        }
+
+        TraceReader trace = new TraceReader(file);
+        assertEquals(TraceRecorder.EPISODE, trace.next());
+        assertEquals(TraceRecorder.TURN, trace.next());
+        assertEquals(TraceRecorder.TURN, trace.next());
+        assertEquals(TraceReader.END_OF_TRACE, trace.next());
+        assertTrue(trace.isTruncated());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotATrace() throws IOException {
+        File file = folder.newFile("weights.txt");
+        Files.write(file.toPath(), "1.000000\n0.500000\n0.250000\n".getBytes("UTF-8"));
+        new TraceReader(file);
+    }
+}
@@ -0,0 +1,151 @@
+package edu.cwru.sepia.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class WeightCheckpointerTest {
+
+    private static final String LAYOUT = "bias,hpRatio,distance";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static WeightCheckpointer.Checkpoint checkpoint(int episode, double... weights) {
+        return new WeightCheckpointer.Checkpoint(LAYOUT, episode, 0.9, 1e-4, 0.02, weights);
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer.write(file, checkpoint(42, 1.0, -0.5, 1e-300));
+
+        WeightCheckpointer.Checkpoint read = WeightCheckpointer.read(file);
+        assertEquals(LAYOUT, read.layout);
+        assertEquals(42, read.episode);
+        assertEquals(0.9, read.gamma, 0);
+        assertEquals(1e-4, read.learningRate, 0);
+        assertEquals(0.02, read.epsilon, 0);
+        assertArrayEquals(new double[]{1.0, -0.5, 1e-300}, read.weights, 0);
+        assertFalse(new File(folder.getRoot(), "weights.bin.tmp").exists());
+    }
+
+    @Test
+    public void replacesAnExistingCheckpoint() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer.write(file, checkpoint(1, 1, 2, 3));
+        WeightCheckpointer.write(file, checkpoint(2, 4, 5));
+
+        WeightCheckpointer.Checkpoint read = WeightCheckpointer.read(file);
+        assertEquals(2, read.episode);
+        assertArrayEquals(new double[]{4, 5}, read.weights, 0);
+    }
+
+    @Test
+    public void rejectsAChecksumMismatch() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer.write(file, checkpoint(42, 1, 2, 3));
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // the last byte of the last weight
+            out.seek(out.length() - 9);
+            int b = out.read();
+            out.seek(out.length() - 9);
+            out.write(b ^ 1);
+        } finally {
+            out.close();
+        }
+        try {
+            WeightCheckpointer.read(file);
+            fail("Read a corrupt checkpoint");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void rejectsATruncatedFile() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer.write(file, checkpoint(42, 1, 2, 3));
+        long length = file.length();
+        for (long size : new long[]{length - 1, length - 8, 7, 0}) {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(size);
+            } finally {
+                out.close();
+            }
+            try {
+                WeightCheckpointer.read(file);
+                fail("Read a checkpoint truncated to " + size + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherFormat() throws IOException {
+        File file = new File(folder.getRoot(), "weights.norm");
+        FeatureNormalizer.write(file, LAYOUT, new FeatureNormalizer(3));
+        WeightCheckpointer.read(file);
+    }
+
+    @Test
+    public void savedStatisticsAreOnlyReadForTheirLayout() throws IOException {
+        File file = WeightCheckpointer.normalizerFile(new File(folder.getRoot(), "weights.bin"));
+        FeatureNormalizer normalizer = new FeatureNormalizer(3);
+        normalizer.observe(new double[]{1, 2, 3, 1, 4, 5}, 0, 2);
+        FeatureNormalizer.write(file, LAYOUT, normalizer);
+
+        assertEquals(2, FeatureNormalizer.read(file, LAYOUT).count());
+        try {
+            FeatureNormalizer.read(file, "bias,distance,hpRatio");
+            fail("Read statistics for another feature layout");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("expected bias,distance,hpRatio"));
+        }
+    }
+
+    @Test
+    public void exportsTextWeightsWithTheirLayout() throws IOException {
+        File text = new File(folder.getRoot(), "export/weights.txt");
+        WeightCheckpointer.writeText(text, checkpoint(42, 1, -0.25, 3.5));
+
+        assertArrayEquals(new double[]{1, -0.25, 3.5}, LinearQFunction.readText(text), 1e-6);
+        assertEquals(new File(folder.getRoot(), "export/weights.features"), WeightCheckpointer.layoutFile(text));
+        assertEquals(LAYOUT, WeightCheckpointer.readLayout(WeightCheckpointer.layoutFile(text)));
+    }
+
+    @Test
+    public void savesTheLastEpisodeOnClose() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer checkpointer = new WeightCheckpointer(file, null, 5);
+        double[] weights = {1, 2, 3};
+        checkpointer.episodeFinished(LAYOUT, 5, 0.9, 1e-4, 0.02, weights);
+        weights[1] = 7;
+        checkpointer.episodeFinished(LAYOUT, 6, 0.9, 1e-4, 0.02, weights);
+        checkpointer.close();
+
+        WeightCheckpointer.Checkpoint read = WeightCheckpointer.read(file);
+        assertEquals(6, read.episode);
+        assertArrayEquals(new double[]{1, 7, 3}, read.weights, 0);
+    }
+
+    @Test
+    public void copiesTheWeightsOfAQueuedCheckpoint() throws IOException {
+        File file = new File(folder.getRoot(), "weights.bin");
+        WeightCheckpointer checkpointer = new WeightCheckpointer(file, null, 1);
+        double[] weights = {1, 2, 3};
+        checkpointer.episodeFinished(LAYOUT, 1, 0.9, 1e-4, 0.02, weights);
+        weights[1] = 7;
+        checkpointer.close();
+
+        assertArrayEquals(new double[]{1, 2, 3}, WeightCheckpointer.read(file).weights, 0);
+    }
+}